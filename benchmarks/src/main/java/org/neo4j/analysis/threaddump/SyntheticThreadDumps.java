@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates HotSpot style thread dumps for benchmarks. The output only
+ * depends on the parameters and the seed.
+ *
+ * Threads run in pools, and draw their stacks from a limited number of call
+ * paths per pool, so that many threads share stacks like in real dumps. A
+ * share of the threads (the contention) is blocked on a few monitors that
+ * are held by other threads.
+ */
+public class SyntheticThreadDumps
+{
+    private static final String[] PACKAGES = { "org.neo4j.kernel.impl.transaction", "org.neo4j.kernel.impl.core",
+            "org.neo4j.kernel.impl.nioneo.store", "org.neo4j.server.rest.web", "org.neo4j.cypher.internal",
+            "org.eclipse.jetty.server", "org.eclipse.jetty.util.thread", "java.util.concurrent",
+            "java.util.concurrent.locks", "java.io", "sun.nio.ch" };
+    private static final String[] CLASSES = { "Manager", "Impl", "Store", "Service", "Handler", "Cache", "Worker",
+            "Pool", "Resource", "Channel", "Reader", "Writer" };
+    private static final String[] METHODS = { "get", "put", "run", "read", "write", "apply", "invoke", "process",
+            "handle", "acquire", "release", "commit" };
+    private static final int PATHS_PER_POOL = 8;
+
+    private final int threads, depth, dumps;
+    private final double contention;
+    private final long seed;
+
+    /**
+     * @param threads the number of threads in each dump.
+     * @param depth the number of frames on the stack of each thread.
+     * @param contention the share of threads, 0 to 1, that are blocked on a
+     *            monitor held by another thread.
+     * @param dumps the number of dumps.
+     */
+    public SyntheticThreadDumps( int threads, int depth, double contention, int dumps, long seed )
+    {
+        this.threads = threads;
+        this.depth = depth;
+        this.contention = contention;
+        this.dumps = dumps;
+        this.seed = seed;
+    }
+
+    public void write( File file ) throws IOException
+    {
+        Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "ISO-8859-1" ),
+                64 * 1024 );
+        try
+        {
+            write( out );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void write( Writer out ) throws IOException
+    {
+        Random random = new Random( seed );
+        int pools = Math.max( 1, threads / 32 );
+        String[][][] paths = new String[pools][PATHS_PER_POOL][];
+        for ( int pool = 0; pool < pools; pool++ )
+        {
+            for ( int path = 0; path < PATHS_PER_POOL; path++ )
+            {
+                paths[pool][path] = path( random );
+            }
+        }
+        int monitors = Math.max( 1, (int) ( threads * contention / 8 ) );
+        for ( int dump = 0; dump < dumps; dump++ )
+        {
+            out.write( String.format( Locale.ROOT, "2011-06-01 12:%02d:%02d\n", ( dump / 60 ) % 60, dump % 60 ) );
+            out.write( "Full thread dump Java HotSpot(TM) 64-Bit Server VM (20.1-b02 mixed mode):\n\n" );
+            for ( int thread = 0; thread < threads; thread++ )
+            {
+                int pool = thread % pools;
+                String[] path = paths[pool][random.nextInt( PATHS_PER_POOL )];
+                long tid = 0x7f0000001000L + thread * 0x800L;
+                String name = "\"pool-" + pool + "-thread-" + thread / pools + "\"";
+                if ( thread < monitors )
+                {
+                    // owns a contended monitor
+                    out.write( name + " prio=10 tid=0x" + Long.toHexString( tid ) + " nid=0x"
+                               + Integer.toHexString( 1000 + thread ) + " runnable [0x00007f00a0000000]\n" );
+                    out.write( "   java.lang.Thread.State: RUNNABLE\n" );
+                    frames( out, path, 0, 1 );
+                    out.write( "\t- locked <" + monitor( thread ) + "> (a java.lang.Object)\n" );
+                    frames( out, path, 1, path.length );
+                }
+                else if ( random.nextDouble() < contention )
+                {
+                    out.write( name + " prio=10 tid=0x" + Long.toHexString( tid ) + " nid=0x"
+                               + Integer.toHexString( 1000 + thread )
+                               + " waiting for monitor entry [0x00007f00a0000000]\n" );
+                    out.write( "   java.lang.Thread.State: BLOCKED (on object monitor)\n" );
+                    frames( out, path, 0, 1 );
+                    out.write( "\t- waiting to lock <" + monitor( random.nextInt( monitors ) )
+                               + "> (a java.lang.Object)\n" );
+                    frames( out, path, 1, path.length );
+                }
+                else
+                {
+                    out.write( name + " prio=10 tid=0x" + Long.toHexString( tid ) + " nid=0x"
+                               + Integer.toHexString( 1000 + thread )
+                               + " waiting on condition [0x00007f00a0000000]\n" );
+                    out.write( "   java.lang.Thread.State: WAITING (parking)\n" );
+                    out.write( "\tat sun.misc.Unsafe.park(Native Method)\n" );
+                    out.write( "\t- parking to wait for  <0x00000000f0" + String.format( Locale.ROOT, "%06x", pool )
+                               + "> (a java.util.concurrent.locks.AbstractQueuedSynchronizer)\n" );
+                    frames( out, path, 1, path.length );
+                }
+                out.write( "\n" );
+            }
+            out.write( "\"VM Thread\" prio=10 tid=0x00007f0000000800 nid=0x10 runnable\n\n" );
+            out.write( "JNI global references: 1024\n\n" );
+        }
+    }
+
+    private static String monitor( int number )
+    {
+        return String.format( Locale.ROOT, "0x00000000e0%06x", number );
+    }
+
+    private static void frames( Writer out, String[] path, int from, int to ) throws IOException
+    {
+        for ( int i = from; i < to; i++ )
+        {
+            out.write( "\tat " );
+            out.write( path[i] );
+            out.write( '\n' );
+        }
+    }
+
+    private String[] path( Random random )
+    {
+        String[] path = new String[depth];
+        for ( int i = 0; i < depth; i++ )
+        {
+            if ( i == depth - 1 )
+            {
+                path[i] = "java.lang.Thread.run(Thread.java:662)";
+                continue;
+            }
+            String type = PACKAGES[random.nextInt( PACKAGES.length )] + "."
+                          + CLASSES[random.nextInt( CLASSES.length )] + CLASSES[random.nextInt( CLASSES.length )];
+            String method = METHODS[random.nextInt( METHODS.length )];
+            String file = type.substring( type.lastIndexOf( '.' ) + 1 ) + ".java";
+            path[i] = type + "." + method + "(" + file + ":" + ( 10 + random.nextInt( 990 ) ) + ")";
+        }
+        return path;
+    }
+
+    public static void main( String... args ) throws IOException
+    {
+        if ( args.length != 6 )
+        {
+            System.err.println( "usage: SyntheticThreadDumps <threads> <depth> <contention> <dumps> <seed> <file>" );
+            System.exit( 1 );
+        }
+        new SyntheticThreadDumps( Integer.parseInt( args[0] ), Integer.parseInt( args[1] ),
+                Double.parseDouble( args[2] ), Integer.parseInt( args[3] ), Long.parseLong( args[4] ) )
+                .write( new File( args[5] ) );
+    }
+}
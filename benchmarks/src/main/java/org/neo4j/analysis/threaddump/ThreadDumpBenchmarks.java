@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks reading and analysing generated thread dumps. The stacks of the
+ * threads and the lock graph of a dump are only built when they are first
+ * used, so the benchmarks that read dumps use them, except for the lazy
+ * variant that only measures finding the threads. Run with the GC
+ * profiler to also get the allocation rate of each benchmark:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ *
+ * or through {@link #main(String...)}, which adds it.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ThreadDumpBenchmarks
+{
+    @Param( { "200", "2000" } )
+    public int threads;
+    @Param( "32" )
+    public int depth;
+    @Param( "0.1" )
+    public double contention;
+    @Param( "20" )
+    public int dumps;
+
+    private File file;
+    private String[] header;
+    /** The text of the first dump of the file. */
+    private byte[] text;
+    private List<ThreadData> threadData;
+    private ThreadDump dump;
+    /** Shared by all invocations, like when reading the many dumps of a log. */
+    private FrameTable frames;
+    private StackTrie stacks;
+    private final PrintStream nowhere = new PrintStream( new OutputStream()
+    {
+        @Override
+        public void write( int b )
+        {
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+        }
+    } );
+
+    @Setup( Level.Trial )
+    public void generate() throws IOException
+    {
+        file = File.createTempFile( "threads", ".txt" );
+        new SyntheticThreadDumps( threads, depth, contention, dumps, 42 ).write( file );
+        List<String[]> chunks = firstDump( file );
+        header = chunks.get( 0 );
+        text = text( chunks );
+        frames = new FrameTable();
+        stacks = new StackTrie();
+        threadData = new ArrayList<ThreadData>();
+        for ( ThreadData thread : parse() )
+        {
+            threadData.add( thread );
+        }
+        dump = new ThreadDump( header, threadData );
+    }
+
+    @TearDown( Level.Trial )
+    public void delete()
+    {
+        file.delete();
+    }
+
+    /**
+     * @return the chunks of the first dump of the file, header first.
+     */
+    private static List<String[]> firstDump( File file ) throws IOException
+    {
+        List<String[]> chunks = new ArrayList<String[]>();
+        BufferedReader input = new BufferedReader( new InputStreamReader( new FileInputStream( file ) ) );
+        try
+        {
+            List<String> chunk = new ArrayList<String>();
+            for ( String line; ( line = input.readLine() ) != null; )
+            {
+                line = line.trim();
+                if ( line.length() != 0 )
+                {
+                    chunk.add( line );
+                    continue;
+                }
+                if ( chunk.isEmpty() ) continue;
+                if ( chunks.size() > 0 && chunk.size() == 2 && chunk.get( 1 ).startsWith( "Full thread dump" ) )
+                {
+                    break;
+                }
+                chunks.add( chunk.toArray( new String[chunk.size()] ) );
+                chunk.clear();
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        return chunks;
+    }
+
+    private static byte[] text( List<String[]> chunks )
+    {
+        StringBuilder text = new StringBuilder();
+        for ( String[] chunk : chunks )
+        {
+            for ( String line : chunk )
+            {
+                text.append( line ).append( '\n' );
+            }
+            text.append( '\n' );
+        }
+        return text.toString().getBytes();
+    }
+
+    /** Parses the first dump, with the stacks of its threads decoded. */
+    private ThreadDump parse() throws IOException
+    {
+        ThreadDumpBuilder builder = new ThreadDumpBuilder( stacks );
+        new ThreadDumpParser( new StreamChunkSource( new ByteArrayInputStream( text ) ), frames ).next( builder );
+        return builder.dump();
+    }
+
+    @Benchmark
+    public void iterateThreadDumpFile( Blackhole blackhole ) throws IOException
+    {
+        BufferedReader input = new BufferedReader( new InputStreamReader( new FileInputStream( file ) ) );
+        try
+        {
+            ThreadDumpFile dumps = new ThreadDumpFile( input );
+            while ( dumps.hasNext() )
+            {
+                decode( dumps.next(), blackhole );
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public void iterateMappedThreadDumpFile( Blackhole blackhole ) throws IOException
+    {
+        MappedThreadDumpFile dumps = new MappedThreadDumpFile( file );
+        try
+        {
+            while ( dumps.hasNext() )
+            {
+                decode( dumps.next(), blackhole );
+            }
+        }
+        finally
+        {
+            dumps.close();
+        }
+    }
+
+    @Benchmark
+    public void iterateMappedThreadDumpFileLazy( Blackhole blackhole ) throws IOException
+    {
+        MappedThreadDumpFile dumps = new MappedThreadDumpFile( file );
+        try
+        {
+            while ( dumps.hasNext() )
+            {
+                blackhole.consume( dumps.next() );
+            }
+        }
+        finally
+        {
+            dumps.close();
+        }
+    }
+
+    /** Decodes the stacks of the threads of the dump, and builds its lock graph. */
+    private static void decode( ThreadDump dump, Blackhole blackhole )
+    {
+        for ( ThreadData thread : dump )
+        {
+            blackhole.consume( thread.stack() );
+        }
+        blackhole.consume( dump.locks() );
+    }
+
+    @Benchmark
+    public ThreadDump readThreadData() throws IOException
+    {
+        return parse();
+    }
+
+    @Benchmark
+    public LockGraph constructThreadDump()
+    {
+        return new ThreadDump( header, threadData ).locks();
+    }
+
+    @Benchmark
+    public void printLocks()
+    {
+        dump.printLocks( nowhere );
+    }
+
+    @Benchmark
+    public void graphviz() throws IOException
+    {
+        GraphvizWriter gv = new GraphvizWriter( new NullChannel(), GraphvizWriter.ALL_FRAMES, false );
+        dump.graphviz( gv, null );
+        gv.close();
+    }
+
+    private static final class NullChannel implements WritableByteChannel
+    {
+        public int write( ByteBuffer src )
+        {
+            int length = src.remaining();
+            src.position( src.limit() );
+            return length;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    public static void main( String... args ) throws RunnerException
+    {
+        new Runner( new OptionsBuilder().include( ThreadDumpBenchmarks.class.getSimpleName() )
+                .addProfiler( GCProfiler.class ).build() ).run();
+    }
+}
@@ -0,0 +1,561 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP service that analyzes thread dumps for everyone who asks, so that
+ * a dump that several people look at is only parsed once:
+ *
+ * <pre>
+ * POST /dumps                          the dump (text, JSON, .gz or .zip) as the body
+ * GET  /dumps?path=/local/file         a file on the host of the service
+ *     both respond with the id of the dump (the SHA-256 of its contents) and its summary
+ * GET  /dumps/&lt;id&gt;                     the summary: threads per state, deadlocks and root blockers
+ * GET  /dumps/&lt;id&gt;/locks[?dump=N]       the monitors and the threads that hold and wait for them
+ * GET  /dumps/&lt;id&gt;/graphviz[?dump=N&amp;depth=D&amp;prune=true&amp;filter=text]
+ * </pre>
+ *
+ * Parsed dumps are cached by the hash of their contents, the least recently
+ * used are evicted when the cached dumps have more than a set number of
+ * threads, so that a repeated request only costs reading and hashing the
+ * dump. Requests are served by a fixed number of workers, uploads are
+ * streamed to a temporary file as they are hashed, so the heap only holds
+ * the dumps that are being parsed and the ones in the cache.
+ *
+ * Since paths are read on the host of the service, it only listens on the
+ * loopback interface unless told otherwise.
+ */
+public class AnalysisServer
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final long maxUpload;
+    private final long cacheThreads;
+    /** In order of access, least recently used first. */
+    private final LinkedHashMap<String, Cached> cache = new LinkedHashMap<String, Cached>( 16, 0.75f, true );
+    private long cachedThreads;
+
+    private static final class Cached
+    {
+        final FutureTask<List<ThreadDump>> parse;
+        /** The number of threads of the dumps, 0 until they are parsed. */
+        long threads;
+
+        Cached( FutureTask<List<ThreadDump>> parse )
+        {
+            this.parse = parse;
+        }
+    }
+
+    /**
+     * @param threads the number of requests served at the same time.
+     * @param cacheThreads the number of threads the cached dumps may have in
+     *            total.
+     * @param maxUpload the largest dump, in bytes, that may be uploaded.
+     */
+    public AnalysisServer( InetSocketAddress address, int threads, long cacheThreads, long maxUpload )
+            throws IOException
+    {
+        this.cacheThreads = cacheThreads;
+        this.maxUpload = maxUpload;
+        this.workers = Executors.newFixedThreadPool( threads, ThreadDumpBatch.daemon( "analysis-server-" ) );
+        this.server = HttpServer.create( address, 0 );
+        server.setExecutor( workers );
+        server.createContext( "/dumps", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                try
+                {
+                    serve( exchange );
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        } );
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop( 0 );
+        workers.shutdownNow();
+    }
+
+    public InetSocketAddress address()
+    {
+        return server.getAddress();
+    }
+
+    private void serve( HttpExchange exchange ) throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().split( "/" );
+        Map<String, String> query = query( exchange.getRequestURI().getRawQuery() );
+        try
+        {
+            if ( path.length == 2 && "POST".equals( method ) )
+            {
+                Upload upload = upload( exchange.getRequestBody() );
+                summary( exchange, upload.id, upload.dumps );
+            }
+            else if ( path.length == 2 && "GET".equals( method ) && query.containsKey( "path" ) )
+            {
+                File file = new File( query.get( "path" ) );
+                String id = hash( new FileInputStream( file ), null );
+                summary( exchange, id, dumps( id, file ) );
+            }
+            else if ( path.length == 3 && "GET".equals( method ) )
+            {
+                summary( exchange, path[2], cached( path[2] ) );
+            }
+            else if ( path.length == 4 && "GET".equals( method ) && "locks".equals( path[3] ) )
+            {
+                locks( exchange, cached( path[2] ), query );
+            }
+            else if ( path.length == 4 && "GET".equals( method ) && "graphviz".equals( path[3] ) )
+            {
+                graphviz( exchange, cached( path[2] ), query );
+            }
+            else
+            {
+                error( exchange, 404, "No such resource: " + method + " " + exchange.getRequestURI() );
+            }
+        }
+        catch ( FileNotFoundException e )
+        {
+            error( exchange, 404, e.getMessage() );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            error( exchange, 400, e.getMessage() );
+        }
+        catch ( UploadTooLarge e )
+        {
+            error( exchange, 413, e.getMessage() );
+        }
+        catch ( Exception e )
+        {
+            error( exchange, 500, e.toString() );
+        }
+    }
+
+    private static final class UploadTooLarge extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UploadTooLarge( long maxUpload )
+        {
+            super( "Uploads may be at most " + maxUpload + " bytes" );
+        }
+    }
+
+    private static final class Upload
+    {
+        final String id;
+        final List<ThreadDump> dumps;
+
+        Upload( String id, List<ThreadDump> dumps )
+        {
+            this.id = id;
+            this.dumps = dumps;
+        }
+    }
+
+    /**
+     * Stores an uploaded dump in a temporary file while hashing it, and
+     * parses it unless it is cached.
+     *
+     * @return the id of the dump, and its dumps, which may already have
+     *         been evicted from the cache again.
+     */
+    private Upload upload( InputStream body ) throws Exception
+    {
+        File file = File.createTempFile( "thread-dump-", ".upload" );
+        try
+        {
+            OutputStream out = new FileOutputStream( file );
+            String id;
+            try
+            {
+                id = hash( body, out );
+            }
+            finally
+            {
+                out.close();
+            }
+            return new Upload( id, dumps( id, file ) );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /** @return the hex SHA-256 of <code>input</code>, which is also copied to <code>copy</code> if it is given. */
+    private String hash( InputStream input, OutputStream copy ) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            for ( int read; ( read = input.read( buffer ) ) != -1; )
+            {
+                digest.update( buffer, 0, read );
+                if ( copy == null ) continue;
+                size += read;
+                if ( size > maxUpload ) throw new UploadTooLarge( maxUpload );
+                copy.write( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        StringBuilder hex = new StringBuilder( 64 );
+        for ( byte b : digest.digest() )
+        {
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the dumps with the given id from the cache, or parsed from
+     *         <code>file</code> if they are not. Requests for the same dump
+     *         at the same time wait for the one parse.
+     */
+    private List<ThreadDump> dumps( String id, final File file ) throws Exception
+    {
+        Cached cached;
+        boolean parse = false;
+        synchronized ( cache )
+        {
+            cached = cache.get( id );
+            if ( cached == null )
+            {
+                if ( file == null ) throw new FileNotFoundException( "No dump " + id + ", it may have been evicted" );
+                cache.put( id, cached = new Cached( new FutureTask<List<ThreadDump>>( new Callable<List<ThreadDump>>()
+                {
+                    public List<ThreadDump> call() throws IOException
+                    {
+                        return parse( file );
+                    }
+                } ) ) );
+                parse = true;
+            }
+        }
+        if ( parse ) cached.parse.run();
+        List<ThreadDump> dumps;
+        try
+        {
+            dumps = cached.parse.get();
+        }
+        catch ( ExecutionException e )
+        {
+            synchronized ( cache )
+            {
+                if ( cache.get( id ) == cached ) cache.remove( id );
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        if ( parse )
+        {
+            long threads = 0;
+            for ( ThreadDump dump : dumps )
+            {
+                threads += dump.size();
+            }
+            synchronized ( cache )
+            {
+                cached.threads = threads;
+                cachedThreads += threads;
+                evict( cached );
+            }
+        }
+        return dumps;
+    }
+
+    private List<ThreadDump> cached( String id ) throws Exception
+    {
+        return dumps( id, null );
+    }
+
+    /**
+     * Evicts the least recently used dumps, that are parsed, until the cache
+     * is within its bound. The dumps that were just parsed are kept even if
+     * they are over the bound on their own, they are evicted by the next
+     * parse.
+     */
+    private void evict( Cached parsed )
+    {
+        for ( Iterator<Cached> entries = cache.values().iterator(); cachedThreads > cacheThreads
+                                                                    && entries.hasNext(); )
+        {
+            Cached cached = entries.next();
+            if ( cached.threads == 0 || cached == parsed ) continue;
+            cachedThreads -= cached.threads;
+            entries.remove();
+        }
+    }
+
+    /** Parses all dumps of a file, eagerly, so that nothing refers to the file afterwards. */
+    private static List<ThreadDump> parse( File file ) throws IOException
+    {
+        List<ThreadDump> dumps = new ArrayList<ThreadDump>();
+        if ( ArchiveThreadDumpFile.isArchive( file ) || JsonThreadDumpFile.isJson( file ) )
+        {
+            Iterator<ThreadDump> iterator = ArchiveThreadDumpFile.isArchive( file )
+                    ? new ArchiveThreadDumpFile( file, 1 ) : new JsonThreadDumpFile( file );
+            try
+            {
+                while ( iterator.hasNext() )
+                {
+                    dumps.add( iterator.next() );
+                }
+            }
+            catch ( UncheckedIOException e )
+            {
+                throw e.getCause();
+            }
+            finally
+            {
+                ( (Closeable) iterator ).close();
+            }
+            return dumps;
+        }
+        InputStream input = new FileInputStream( file );
+        try
+        {
+            ThreadDumpParser parser = new ThreadDumpParser( new StreamChunkSource( input ), new FrameTable() );
+            ThreadDumpBuilder builder = new ThreadDumpBuilder( new StackTrie() );
+            while ( parser.next( builder ) )
+            {
+                dumps.add( builder.dump() );
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        return dumps;
+    }
+
+    private void summary( HttpExchange exchange, String id, List<ThreadDump> dumps ) throws IOException
+    {
+        PrintStream out = respond( exchange, "text/plain" );
+        out.println( id );
+        int index = 0;
+        for ( ThreadDump dump : dumps )
+        {
+            int[] states = new int[STATES.length];
+            for ( ThreadData thread : dump )
+            {
+                if ( !thread.isSystemThread() ) states[thread.state().ordinal()]++;
+            }
+            out.print( index++ + ": " + dump + ":" );
+            for ( int i = 0; i < STATES.length; i++ )
+            {
+                if ( states[i] != 0 ) out.print( " " + STATES[i] + "=" + states[i] );
+            }
+            out.println();
+            dump.printBlocking( out );
+        }
+        out.close();
+    }
+
+    private void locks( HttpExchange exchange, List<ThreadDump> dumps, Map<String, String> query )
+            throws IOException
+    {
+        int from = 0, to = dumps.size();
+        if ( query.containsKey( "dump" ) ) to = ( from = index( dumps, query.get( "dump" ) ) ) + 1;
+        PrintStream out = respond( exchange, "text/plain" );
+        for ( int i = from; i < to; i++ )
+        {
+            out.println( i + ": " + dumps.get( i ) );
+            dumps.get( i ).printLocks( out );
+        }
+        out.close();
+    }
+
+    private void graphviz( HttpExchange exchange, List<ThreadDump> dumps, Map<String, String> query )
+            throws IOException
+    {
+        ThreadDump dump = dumps.get( query.containsKey( "dump" ) ? index( dumps, query.get( "dump" ) ) : 0 );
+        int depth = GraphvizWriter.ALL_FRAMES;
+        if ( query.containsKey( "depth" ) ) depth = number( query.get( "depth" ) );
+        boolean prune = "true".equals( query.get( "prune" ) );
+        exchange.getResponseHeaders().set( "Content-Type", "text/vnd.graphviz" );
+        exchange.sendResponseHeaders( 200, 0 );
+        GraphvizWriter gv = new GraphvizWriter( Channels.newChannel( exchange.getResponseBody() ), depth, prune );
+        try
+        {
+            dump.graphviz( gv, query.get( "filter" ) );
+        }
+        finally
+        {
+            gv.close();
+        }
+    }
+
+    private static int index( List<ThreadDump> dumps, String value )
+    {
+        int index = number( value );
+        if ( index < 0 || index >= dumps.size() )
+        {
+            throw new IllegalArgumentException( "No dump " + value + ", there are " + dumps.size() );
+        }
+        return index;
+    }
+
+    private static int number( String value )
+    {
+        try
+        {
+            return Integer.parseInt( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Not a number: " + value );
+        }
+    }
+
+    private static Map<String, String> query( String query ) throws IOException
+    {
+        Map<String, String> result = new HashMap<String, String>();
+        if ( query == null ) return result;
+        for ( String parameter : query.split( "&" ) )
+        {
+            int eq = parameter.indexOf( '=' );
+            if ( eq == -1 ) result.put( URLDecoder.decode( parameter, "UTF-8" ), "" );
+            else result.put( URLDecoder.decode( parameter.substring( 0, eq ), "UTF-8" ),
+                    URLDecoder.decode( parameter.substring( eq + 1 ), "UTF-8" ) );
+        }
+        return result;
+    }
+
+    private static PrintStream respond( HttpExchange exchange, String type ) throws IOException
+    {
+        exchange.getResponseHeaders().set( "Content-Type", type + "; charset=" + Charset.defaultCharset().name() );
+        exchange.sendResponseHeaders( 200, 0 );
+        return new PrintStream( exchange.getResponseBody() );
+    }
+
+    /**
+     * Responds with an error, unless a response has already been started,
+     * then the error can only be logged, and the response is cut short when
+     * the exchange is closed.
+     */
+    private static void error( HttpExchange exchange, int status, String message ) throws IOException
+    {
+        if ( exchange.getResponseCode() != -1 )
+        {
+            System.err.println( exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed after "
+                                + exchange.getResponseCode() + " was sent: " + message );
+            return;
+        }
+        byte[] body = ( message + "\n" ).getBytes( "UTF-8" );
+        exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=UTF-8" );
+        exchange.sendResponseHeaders( status, body.length );
+        exchange.getResponseBody().write( body );
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        int port = 8080, threads = Runtime.getRuntime().availableProcessors();
+        long cacheThreads = 2000000, maxUpload = 4L << 30;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        for ( int i = 0; i < args.length; i++ )
+        {
+            if ( "--port".equals( args[i] ) && i + 1 < args.length ) port = Integer.parseInt( args[++i] );
+            else if ( "--bind".equals( args[i] ) && i + 1 < args.length ) bind = InetAddress.getByName( args[++i] );
+            else if ( "--threads".equals( args[i] ) && i + 1 < args.length ) threads = Integer.parseInt( args[++i] );
+            else if ( "--cache-threads".equals( args[i] ) && i + 1 < args.length )
+            {
+                cacheThreads = Long.parseLong( args[++i] );
+            }
+            else if ( "--max-upload-mb".equals( args[i] ) && i + 1 < args.length )
+            {
+                maxUpload = Long.parseLong( args[++i] ) << 20;
+            }
+            else
+            {
+                System.err.println( "usage: AnalysisServer [--port 8080] [--bind address] [--threads N]"
+                                    + " [--cache-threads N] [--max-upload-mb N]" );
+                System.exit( 1 );
+            }
+        }
+        AnalysisServer server = new AnalysisServer( new InetSocketAddress( bind, port ), threads, cacheThreads,
+                maxUpload );
+        server.start();
+        System.err.println( "Analyzing thread dumps at http://" + server.address().getHostString() + ":"
+                            + server.address().getPort() + "/dumps" );
+    }
+}
@@ -0,0 +1,583 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Streams the files of a compressed archive without unpacking it to disk:
+ * the entries of a zip file, or the members of a gzip file (such as rotated
+ * logs appended to each other), which are read as one file. Each entry or
+ * member is inflated by a task on a pool, a bounded number of them ahead of
+ * the one that is read, into a {@link BlockPipe} of a bounded number of
+ * blocks.
+ *
+ * Where the members of a gzip file start is only known once the one before
+ * has been inflated, so the file is first scanned for the headers that could
+ * start one. A task is started for each of them, and the one that starts
+ * where the previous member ended is read. The others, whose header was a
+ * chance match in compressed data, are cancelled.
+ */
+abstract class ArchiveInput implements Closeable
+{
+    private static final int PIPE_BLOCKS = 16;
+
+    /** A file of the archive, the members of a gzip file are one. */
+    static final class Entry
+    {
+        final String name;
+        final InputStream input;
+
+        Entry( String name, InputStream input )
+        {
+            this.name = name;
+            this.input = input;
+        }
+    }
+
+    /** Writes one entry or member to a pipe. */
+    interface Producer
+    {
+        /** @return the position in the archive where what was read ended, or -1 if that has no use. */
+        long produce( BlockPipe out ) throws IOException, InterruptedException;
+    }
+
+    private static final class Part
+    {
+        final long start;
+        final BlockPipe pipe = new BlockPipe( PIPE_BLOCKS );
+        Future<?> task;
+
+        Part( long start )
+        {
+            this.start = start;
+        }
+    }
+
+    private final ExecutorService pool;
+    private final int readAhead;
+    private final Deque<Part> pending = new ArrayDeque<Part>();
+    private Part current;
+
+    private ArchiveInput( ExecutorService pool, int readAhead )
+    {
+        this.pool = pool;
+        this.readAhead = readAhead;
+    }
+
+    /** @return the next file of the archive, or <code>null</code> if there are no more. */
+    abstract Entry next() throws IOException;
+
+    /** @return <code>true</code> if the file starts like a gzip or zip file. */
+    static boolean isArchive( File file ) throws IOException
+    {
+        return type( file ) != 0;
+    }
+
+    private static int type( File file ) throws IOException
+    {
+        InputStream input = new FileInputStream( file );
+        try
+        {
+            int a = input.read(), b = input.read(), c = input.read(), d = input.read();
+            if ( a == 0x1f && b == 0x8b ) return 'g';
+            if ( a == 'P' && b == 'K' && ( c == 3 && d == 4 || c == 5 && d == 6 ) ) return 'z';
+            return 0;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * @param readAhead the number of entries or members that are inflated
+     *            ahead of the one that is read.
+     */
+    static ArchiveInput open( File file, ExecutorService pool, int readAhead ) throws IOException
+    {
+        switch ( type( file ) )
+        {
+        case 'g':
+            return new Gzip( file, pool, readAhead );
+        case 'z':
+            return new Zip( file, pool, readAhead );
+        default:
+            throw new IOException( file + " is not a gzip or zip file" );
+        }
+    }
+
+    final void submit( long start, final Producer producer )
+    {
+        final Part part = new Part( start );
+        part.task = pool.submit( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    try
+                    {
+                        part.pipe.finish( producer.produce( part.pipe ) );
+                    }
+                    catch ( IOException e )
+                    {
+                        part.pipe.fail( e );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        part.pipe.fail( new IOException( e ) );
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    // cancelled, no one reads the pipe
+                }
+            }
+        } );
+        pending.add( part );
+    }
+
+    final boolean isFull()
+    {
+        return pending.size() >= readAhead;
+    }
+
+    /** @return the first part that is not read yet, or <code>null</code>. */
+    final Part peek()
+    {
+        return pending.peek();
+    }
+
+    /**
+     * Moves on to read the first part, the inflation of the part that was
+     * read before is stopped if it was not read to the end.
+     *
+     * @return the pipe of the part, or <code>null</code> if there are none.
+     */
+    final BlockPipe poll()
+    {
+        if ( current != null ) current.task.cancel( true );
+        current = pending.poll();
+        return current == null ? null : current.pipe;
+    }
+
+    /** Stops the inflation of the first part, that will not be read. */
+    final void skipPart()
+    {
+        pending.poll().task.cancel( true );
+    }
+
+    public void close() throws IOException
+    {
+        if ( current != null ) current.task.cancel( true );
+        while ( !pending.isEmpty() )
+        {
+            skipPart();
+        }
+    }
+
+    private static final class Zip extends ArchiveInput
+    {
+        private final ZipFile zip;
+        private final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        private final List<String> names = new ArrayList<String>();
+        private int submitted, read;
+
+        Zip( File file, ExecutorService pool, int readAhead ) throws IOException
+        {
+            super( pool, readAhead );
+            this.zip = new ZipFile( file );
+            for ( Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = e.nextElement();
+                if ( !entry.isDirectory() ) entries.add( entry );
+            }
+        }
+
+        @Override
+        Entry next() throws IOException
+        {
+            while ( !isFull() && submitted < entries.size() )
+            {
+                final ZipEntry entry = entries.get( submitted++ );
+                names.add( entry.getName() );
+                submit( submitted, new Producer()
+                {
+                    public long produce( BlockPipe out ) throws IOException, InterruptedException
+                    {
+                        InputStream input = zip.getInputStream( entry );
+                        if ( entry.getName().endsWith( ".gz" ) ) input = new GZIPInputStream( input, 64 * 1024 );
+                        try
+                        {
+                            copy( input, out );
+                        }
+                        finally
+                        {
+                            input.close();
+                        }
+                        return -1;
+                    }
+                } );
+            }
+            BlockPipe pipe = poll();
+            return pipe == null ? null : new Entry( names.get( read++ ), pipe );
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            zip.close();
+        }
+    }
+
+    static void copy( InputStream input, BlockPipe out ) throws IOException, InterruptedException
+    {
+        byte[] block = new byte[BlockPipe.BLOCK_SIZE];
+        int filled = 0;
+        for ( int read; ( read = input.read( block, filled, block.length - filled ) ) != -1; )
+        {
+            filled += read;
+            if ( filled < block.length ) continue;
+            if ( Thread.interrupted() ) throw new InterruptedException();
+            out.put( block, filled );
+            block = new byte[BlockPipe.BLOCK_SIZE];
+            filled = 0;
+        }
+        out.put( block, filled );
+    }
+
+    private static final class Gzip extends ArchiveInput
+    {
+        private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+        private static final int HEADER_SIZE = 10;
+
+        private final String name;
+        private final FileChannel channel;
+        private final long[] candidates;
+        private int submitted;
+        private boolean opened;
+
+        Gzip( File file, ExecutorService pool, int readAhead ) throws IOException
+        {
+            super( pool, readAhead );
+            String name = file.getName();
+            this.name = name.endsWith( ".gz" ) ? name.substring( 0, name.length() - 3 ) : name;
+            this.channel = new RandomAccessFile( file, "r" ).getChannel();
+            this.candidates = candidates( channel, pool );
+        }
+
+        @Override
+        Entry next()
+        {
+            if ( opened ) return null;
+            opened = true;
+            return new Entry( name, new Members() );
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            channel.close();
+        }
+
+        private void submitAhead()
+        {
+            while ( !isFull() && submitted < candidates.length )
+            {
+                final long start = candidates[submitted++];
+                submit( start, new Producer()
+                {
+                    public long produce( BlockPipe out ) throws IOException, InterruptedException
+                    {
+                        return inflate( channel, start, out );
+                    }
+                } );
+            }
+        }
+
+        /** The members, read one after the other. */
+        private final class Members extends InputStream
+        {
+            private BlockPipe current;
+            private long position;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read( byte[] buffer, int offset, int length ) throws IOException
+            {
+                for ( ;; )
+                {
+                    if ( current == null && !advance() ) return -1;
+                    int read = current.read( buffer, offset, length );
+                    if ( read != -1 ) return read;
+                    position = current.end();
+                    current = null;
+                }
+            }
+
+            /** Moves to the member that starts where the last one ended. */
+            private boolean advance()
+            {
+                if ( done ) return false;
+                submitAhead();
+                for ( Part head; ( head = peek() ) != null && head.start < position; submitAhead() )
+                {
+                    skipPart();
+                }
+                Part head = peek();
+                // anything after the last member, such as padding, is ignored like gunzip does
+                if ( head == null || head.start != position )
+                {
+                    done = true;
+                    return false;
+                }
+                current = poll();
+                submitAhead();
+                return true;
+            }
+        }
+
+        /**
+         * @return the positions of the file where a gzip header could start,
+         *         found on <code>pool</code> in segments of the file.
+         */
+        private static long[] candidates( final FileChannel channel, ExecutorService pool ) throws IOException
+        {
+            final long size = channel.size();
+            List<Future<List<Long>>> segments = new ArrayList<Future<List<Long>>>();
+            for ( long start = 0; start < size; start += SEGMENT_SIZE )
+            {
+                final long from = start, to = Math.min( size, start + SEGMENT_SIZE );
+                segments.add( pool.submit( new Callable<List<Long>>()
+                {
+                    public List<Long> call() throws IOException
+                    {
+                        return findHeaders( channel, size, from, to );
+                    }
+                } ) );
+            }
+            List<Long> candidates = new ArrayList<Long>();
+            try
+            {
+                for ( Future<List<Long>> segment : segments )
+                {
+                    candidates.addAll( segment.get() );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( e );
+            }
+            catch ( ExecutionException e )
+            {
+                throw new IOException( e.getCause() );
+            }
+            long[] result = new long[candidates.size()];
+            for ( int i = 0; i < result.length; i++ )
+            {
+                result[i] = candidates.get( i );
+            }
+            return result;
+        }
+
+        private static List<Long> findHeaders( FileChannel channel, long size, long from, long to )
+                throws IOException
+        {
+            ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, from,
+                    Math.min( size, to + HEADER_SIZE ) - from );
+            List<Long> headers = Collections.emptyList();
+            int end = (int) Math.min( to - from, buffer.limit() - HEADER_SIZE + 1 );
+            for ( int pos = 0; pos < end; pos++ )
+            {
+                if ( buffer.get( pos ) != 0x1f || !isHeader( buffer, pos ) ) continue;
+                if ( headers.isEmpty() ) headers = new ArrayList<Long>();
+                headers.add( from + pos );
+            }
+            return headers;
+        }
+
+        /**
+         * A header has the magic number, the deflate method, no reserved
+         * flags, and valid extra flags and OS.
+         */
+        private static boolean isHeader( ByteBuffer buffer, int pos )
+        {
+            int xfl = buffer.get( pos + 8 ) & 0xFF, os = buffer.get( pos + 9 ) & 0xFF;
+            return ( buffer.get( pos + 1 ) & 0xFF ) == 0x8b && buffer.get( pos + 2 ) == 8
+                   && ( buffer.get( pos + 3 ) & 0xE0 ) == 0 && ( xfl == 0 || xfl == 2 || xfl == 4 )
+                   && ( os <= 13 || os == 255 );
+        }
+
+        /**
+         * Inflates the member that starts at <code>start</code>.
+         *
+         * @return the position right after the member.
+         */
+        static long inflate( FileChannel channel, long start, BlockPipe out ) throws IOException,
+                InterruptedException
+        {
+            Input in = new Input( channel, start );
+            if ( in.read() != 0x1f || in.read() != 0x8b || in.read() != 8 )
+            {
+                throw new ZipException( "Not in GZIP format" );
+            }
+            int flags = in.read();
+            in.skip( 6 );
+            if ( ( flags & 4 ) != 0 ) in.skip( in.read() | in.read() << 8 );
+            if ( ( flags & 8 ) != 0 ) while ( in.read() != 0 );
+            if ( ( flags & 16 ) != 0 ) while ( in.read() != 0 );
+            if ( ( flags & 2 ) != 0 ) in.skip( 2 );
+            Inflater inflater = new Inflater( true );
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try
+            {
+                byte[] block = new byte[BlockPipe.BLOCK_SIZE];
+                int filled = 0;
+                while ( !inflater.finished() )
+                {
+                    if ( inflater.needsInput() ) in.feed( inflater );
+                    int inflated = inflater.inflate( block, filled, block.length - filled );
+                    if ( inflated == 0 && inflater.needsDictionary() ) throw new ZipException( "Needs a dictionary" );
+                    crc.update( block, filled, inflated );
+                    filled += inflated;
+                    size += inflated;
+                    if ( filled < block.length ) continue;
+                    if ( Thread.interrupted() ) throw new InterruptedException();
+                    out.put( block, filled );
+                    block = new byte[BlockPipe.BLOCK_SIZE];
+                    filled = 0;
+                }
+                out.put( block, filled );
+                in.unread( inflater.getRemaining() );
+            }
+            catch ( DataFormatException e )
+            {
+                throw new ZipException( e.getMessage() );
+            }
+            finally
+            {
+                inflater.end();
+            }
+            if ( in.readInt() != (int) crc.getValue() || in.readInt() != (int) size )
+            {
+                throw new ZipException( "Corrupt GZIP trailer" );
+            }
+            return in.position();
+        }
+
+        /** Reads a file from a position, with positional reads so that many can read the same channel. */
+        private static final class Input
+        {
+            private final FileChannel channel;
+            private final byte[] buffer = new byte[64 * 1024];
+            private long offset;
+            private int position, limit;
+
+            Input( FileChannel channel, long start )
+            {
+                this.channel = channel;
+                this.offset = start;
+            }
+
+            long position()
+            {
+                return offset + position;
+            }
+
+            private void fill() throws IOException
+            {
+                offset += limit;
+                position = limit = 0;
+                int read = channel.read( ByteBuffer.wrap( buffer ), offset );
+                if ( read <= 0 ) throw new EOFException( "Unexpected end of GZIP input" );
+                limit = read;
+            }
+
+            int read() throws IOException
+            {
+                if ( position == limit ) fill();
+                return buffer[position++] & 0xFF;
+            }
+
+            int readInt() throws IOException
+            {
+                return read() | read() << 8 | read() << 16 | read() << 24;
+            }
+
+            void skip( int count ) throws IOException
+            {
+                for ( int i = 0; i < count; i++ )
+                {
+                    read();
+                }
+            }
+
+            /** Gives the rest of the buffer to <code>inflater</code>. */
+            void feed( Inflater inflater ) throws IOException
+            {
+                if ( position == limit ) fill();
+                inflater.setInput( buffer, position, limit - position );
+                position = limit;
+            }
+
+            /** Takes back the last <code>count</code> bytes given to an inflater, that it didn't use. */
+            void unread( int count )
+            {
+                position -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads the thread dumps of the files in a <code>.zip</code> or
+ * <code>.gz</code> archive, in the order of the archive, straight from the
+ * archive. The files are inflated on a pool of threads, ahead of the one that
+ * is parsed, see {@link ArchiveInput}. Files may be text or JSON dumps, and
+ * zip entries may themselves be gzipped.
+ */
+public class ArchiveThreadDumpFile implements Iterator<ThreadDump>, Closeable
+{
+    private final ExecutorService pool;
+    private final ArchiveInput archive;
+    private final FrameTable frames = new FrameTable();
+    private final ThreadDumpBuilder builder = new ThreadDumpBuilder( new StackTrie() );
+    private ThreadDumpParser text;
+    private JsonThreadDumpParser json;
+    private ThreadDump next;
+
+    public ArchiveThreadDumpFile( File file ) throws IOException
+    {
+        this( file, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * @param threads the number of threads that inflate, which is also the
+     *            number of files or members that are inflated ahead.
+     */
+    public ArchiveThreadDumpFile( File file, int threads ) throws IOException
+    {
+        this.pool = Executors.newFixedThreadPool( threads, ThreadDumpBatch.daemon( "archive-inflater-" ) );
+        try
+        {
+            this.archive = ArchiveInput.open( file, pool, threads );
+        }
+        catch ( IOException e )
+        {
+            pool.shutdownNow();
+            throw e;
+        }
+    }
+
+    /** @return <code>true</code> if the file starts like a gzip or zip file. */
+    public static boolean isArchive( File file ) throws IOException
+    {
+        return ArchiveInput.isArchive( file );
+    }
+
+    /** @return <code>false</code> if there are no more files in the archive. */
+    private boolean open() throws IOException
+    {
+        ArchiveInput.Entry entry = archive.next();
+        if ( entry == null ) return false;
+        InputStream input = new BufferedInputStream( entry.input, 64 * 1024 );
+        if ( isJson( input ) ) json = new JsonThreadDumpParser( input, frames );
+        else text = new ThreadDumpParser( new StreamChunkSource( input ), frames );
+        return true;
+    }
+
+    private static boolean isJson( InputStream input ) throws IOException
+    {
+        input.mark( 4096 );
+        try
+        {
+            for ( int i = 0, c; i < 4096 && ( c = input.read() ) != -1; i++ )
+            {
+                if ( c > ' ' ) return c == '{';
+            }
+            return false;
+        }
+        finally
+        {
+            input.reset();
+        }
+    }
+
+    private boolean parse() throws IOException
+    {
+        for ( ;; )
+        {
+            if ( json == null && text == null && !open() ) return false;
+            if ( json != null ? json.next( builder ) : text.next( builder ) ) return true;
+            json = null;
+            text = null;
+        }
+    }
+
+    public boolean hasNext()
+    {
+        if ( next != null ) return true;
+        try
+        {
+            long allocated = ParseStatistics.allocated();
+            next = parse() ? builder.dump() : null;
+            if ( next != null ) ParseStatistics.dump( allocated );
+        }
+        catch ( IOException e )
+        {
+            next = null;
+        }
+        return next != null;
+    }
+
+    public ThreadDump next()
+    {
+        if ( hasNext() )
+        {
+            try
+            {
+                return next;
+            }
+            finally
+            {
+                next = null;
+            }
+        }
+        else
+        {
+            throw new NoSuchElementException();
+        }
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException( "java.util.Iterator<ThreadDump>.remove()" );
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            archive.close();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+}
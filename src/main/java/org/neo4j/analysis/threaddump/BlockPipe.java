@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the blocks of bytes that one thread produces, such as an inflated
+ * part of an archive, to a thread that reads them as a stream. At most a
+ * fixed number of blocks are buffered, the producer waits for the reader
+ * when they are all full.
+ */
+final class BlockPipe extends InputStream
+{
+    static final int BLOCK_SIZE = 256 * 1024;
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks;
+    private volatile IOException failure;
+    /** Set by the producer before the end, for a position of the input where what it read ended. */
+    private volatile long end = -1;
+    private byte[] block;
+    private int position, limit;
+
+    BlockPipe( int capacity )
+    {
+        this.blocks = new ArrayBlockingQueue<byte[]>( capacity );
+    }
+
+    // producer
+
+    /** Hands over <code>block</code>, it must not be used by the producer after this. */
+    void put( byte[] block, int length ) throws InterruptedException
+    {
+        if ( length == 0 ) return;
+        blocks.put( length == block.length ? block : Arrays.copyOf( block, length ) );
+    }
+
+    /** Ends the stream, at the given position in the input. */
+    void finish( long end ) throws InterruptedException
+    {
+        this.end = end;
+        blocks.put( END );
+    }
+
+    /** Ends the stream with a failure, that the reader gets once it has read what came before it. */
+    void fail( IOException failure ) throws InterruptedException
+    {
+        this.failure = failure;
+        blocks.put( END );
+    }
+
+    // reader
+
+    /** @return the position the producer gave when it finished, once the stream has been read to the end. */
+    long end()
+    {
+        return end;
+    }
+
+    private boolean take() throws IOException
+    {
+        if ( block != END )
+        {
+            try
+            {
+                block = blocks.take();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new InterruptedIOException();
+            }
+            position = 0;
+            limit = block.length;
+        }
+        if ( block != END ) return true;
+        if ( failure != null ) throw failure;
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if ( position == limit && !take() ) return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read( byte[] buffer, int offset, int length ) throws IOException
+    {
+        if ( length == 0 ) return 0;
+        if ( position == limit && !take() ) return -1;
+        int count = Math.min( length, limit - position );
+        System.arraycopy( block, position, buffer, offset, count );
+        position += count;
+        return count;
+    }
+}
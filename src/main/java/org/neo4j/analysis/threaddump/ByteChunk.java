@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A blank-line separated chunk of a thread dump, kept as trimmed line ranges
+ * into the underlying byte buffer. Instances are reused from chunk to chunk,
+ * strings are only decoded for the parts of a line that are actually kept.
+ */
+final class ByteChunk
+{
+    private static final Charset ASCII = Charset.forName( "ISO-8859-1" );
+    private static final Charset DEFAULT = Charset.defaultCharset();
+
+    private ByteBuffer buffer;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int size;
+    private int start, end;
+    private boolean terminated;
+    private byte[] scratch = new byte[256];
+
+    void reset( ByteBuffer buffer, int start )
+    {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = start;
+        this.size = 0;
+        this.terminated = false;
+    }
+
+    void add( int lineStart, int lineEnd )
+    {
+        if ( size == starts.length )
+        {
+            int[] newStarts = new int[size * 2], newEnds = new int[size * 2];
+            System.arraycopy( starts, 0, newStarts, 0, size );
+            System.arraycopy( ends, 0, newEnds, 0, size );
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[size] = lineStart;
+        ends[size++] = lineEnd;
+    }
+
+    void end( int end, boolean terminated )
+    {
+        this.end = end;
+        this.terminated = terminated;
+    }
+
+    /** The number of (non blank) lines in this chunk. */
+    int size()
+    {
+        return size;
+    }
+
+    /** Position of the first byte of this chunk in the buffer. */
+    int start()
+    {
+        return start;
+    }
+
+    /** Position right after the last byte of this chunk in the buffer. */
+    int end()
+    {
+        return end;
+    }
+
+    /**
+     * @return <code>true</code> if this chunk was ended by a blank line,
+     *         <code>false</code> if it was cut off by the end of the buffer.
+     */
+    boolean isTerminated()
+    {
+        return terminated;
+    }
+
+    /** The buffer the lines of this chunk are in. */
+    ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    /** Position of the first byte of a line in the buffer. */
+    int lineStart( int line )
+    {
+        return starts[line];
+    }
+
+    /** Position right after the last byte of a line in the buffer. */
+    int lineEnd( int line )
+    {
+        return ends[line];
+    }
+
+    int length( int line )
+    {
+        return ends[line] - starts[line];
+    }
+
+    byte byteAt( int line, int offset )
+    {
+        return buffer.get( starts[line] + offset );
+    }
+
+    boolean startsWith( int line, String prefix )
+    {
+        return regionMatches( line, 0, prefix );
+    }
+
+    boolean regionMatches( int line, int offset, String string )
+    {
+        int pos = starts[line] + offset;
+        if ( offset < 0 || pos + string.length() > ends[line] ) return false;
+        for ( int i = 0; i < string.length(); i++ )
+        {
+            if ( buffer.get( pos + i ) != string.charAt( i ) ) return false;
+        }
+        return true;
+    }
+
+    /** @return the offset of the first <code>b</code> at or after <code>from</code>, or -1. */
+    int indexOf( int line, int from, char b )
+    {
+        for ( int pos = starts[line] + from, limit = ends[line]; pos < limit; pos++ )
+        {
+            if ( buffer.get( pos ) == b ) return pos - starts[line];
+        }
+        return -1;
+    }
+
+    /** @return the offset of the first non whitespace byte at or after <code>from</code>. */
+    int skipWhitespace( int line, int from )
+    {
+        int pos = starts[line] + from, limit = ends[line];
+        while ( pos < limit && ( buffer.get( pos ) & 0xFF ) <= ' ' )
+        {
+            pos++;
+        }
+        return pos - starts[line];
+    }
+
+    /** @return the same hash as {@link FrameTable#hash(byte[])} of the bytes from <code>from</code>. */
+    int hash( int line, int from )
+    {
+        int hash = 0;
+        for ( int pos = starts[line] + from, limit = ends[line]; pos < limit; pos++ )
+        {
+            hash = 31 * hash + buffer.get( pos );
+        }
+        return FrameTable.spread( hash );
+    }
+
+    boolean regionEquals( int line, int from, byte[] bytes )
+    {
+        int pos = starts[line] + from;
+        if ( ends[line] - pos != bytes.length ) return false;
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            if ( buffer.get( pos + i ) != bytes[i] ) return false;
+        }
+        return true;
+    }
+
+    byte[] bytes( int line, int from )
+    {
+        byte[] result = new byte[Math.max( 0, length( line ) - from )];
+        for ( int i = 0, pos = starts[line] + from; i < result.length; i++ )
+        {
+            result[i] = buffer.get( pos + i );
+        }
+        return result;
+    }
+
+    String string( int line )
+    {
+        return string( line, 0, length( line ) );
+    }
+
+    String string( int line, int from )
+    {
+        return string( line, from, length( line ) );
+    }
+
+    String string( int line, int from, int to )
+    {
+        int length = to - from;
+        if ( length <= 0 ) return "";
+        if ( scratch.length < length ) scratch = new byte[Math.max( length, scratch.length * 2 )];
+        boolean ascii = true;
+        for ( int i = 0, pos = starts[line] + from; i < length; i++ )
+        {
+            byte b = buffer.get( pos + i );
+            ascii &= b >= 0;
+            scratch[i] = b;
+        }
+        return new String( scratch, 0, length, ascii ? ASCII : DEFAULT );
+    }
+
+    String[] strings()
+    {
+        String[] result = new String[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            result[i] = string( i );
+        }
+        return result;
+    }
+
+    boolean isHeader()
+    {
+        return size == 2 && startsWith( 1, "Full thread dump" );
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the line and chunk boundaries of a thread dump by scanning the raw
+ * bytes of a buffer, without decoding any characters.
+ */
+final class ChunkScanner
+{
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int position;
+
+    ChunkScanner( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+    }
+
+    int position()
+    {
+        return position;
+    }
+
+    /**
+     * Reads the next chunk of non blank lines into <code>chunk</code>.
+     *
+     * @return <code>false</code> if there are no more non blank lines in the
+     *         buffer.
+     */
+    boolean next( ByteChunk chunk )
+    {
+        final ByteBuffer buffer = this.buffer;
+        final int limit = this.limit;
+        int pos = position;
+        boolean started = false;
+        while ( pos < limit )
+        {
+            int lineStart = pos, lineEnd = pos;
+            while ( lineEnd < limit && buffer.get( lineEnd ) != '\n' )
+            {
+                lineEnd++;
+            }
+            boolean complete = lineEnd < limit;
+            pos = complete ? lineEnd + 1 : lineEnd;
+            while ( lineStart < lineEnd && ( buffer.get( lineStart ) & 0xFF ) <= ' ' )
+            {
+                lineStart++;
+            }
+            while ( lineEnd > lineStart && ( buffer.get( lineEnd - 1 ) & 0xFF ) <= ' ' )
+            {
+                lineEnd--;
+            }
+            if ( lineStart == lineEnd )
+            {
+                if ( started && complete )
+                {
+                    position = pos;
+                    chunk.end( pos, true );
+                    return true;
+                }
+            }
+            else
+            {
+                if ( !started )
+                {
+                    chunk.reset( buffer, lineStart );
+                    started = true;
+                }
+                chunk.add( lineStart, lineEnd );
+            }
+        }
+        position = pos;
+        if ( started ) chunk.end( limit, false );
+        return started;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Counts the threads with identical stacks in each thread container of JSON
+ * thread dumps, without keeping the threads. A container of a million
+ * virtual threads that run the same few tasks costs a few stacks in the
+ * {@link StackTrie}, and a count for each.
+ */
+public class ContainerStacks
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final FrameTable frames = new FrameTable();
+    private final StackTrie stacks = new StackTrie();
+    private final Map<String, Container> containers = new LinkedHashMap<String, Container>();
+
+    private static final class Container
+    {
+        final String name, parent;
+        final long[] states = new long[STATES.length + 1];
+        final Map<StackTrie.Node, long[]> counts = new HashMap<StackTrie.Node, long[]>();
+        long threads;
+
+        Container( String name, String parent )
+        {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    /** Counts the threads of all dumps of a JSON input. */
+    public void add( InputStream input ) throws IOException
+    {
+        JsonThreadDumpParser parser = new JsonThreadDumpParser( input, frames );
+        try
+        {
+            Counter counter = new Counter();
+            while ( parser.next( counter ) )
+            {
+                // counted as the threads are read
+            }
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+
+    public void add( File file ) throws IOException
+    {
+        add( new FileInputStream( file ) );
+    }
+
+    private final class Counter extends ThreadDumpVisitor.Adapter implements JsonThreadDumpParser.ContainerVisitor
+    {
+        private StackElement[] stack = new StackElement[64];
+        private int depth;
+        private Container container;
+        private Thread.State state;
+
+        public void onContainer( String name, String parent )
+        {
+            if ( name == null ) name = "<unnamed>";
+            container = containers.get( name );
+            if ( container == null ) containers.put( name, container = new Container( name, parent ) );
+        }
+
+        @Override
+        public void onThread( String info, Thread.State state, String stateComment )
+        {
+            this.state = state;
+            depth = 0;
+        }
+
+        @Override
+        public void onFrame( MethodEntry frame )
+        {
+            push( frame );
+        }
+
+        @Override
+        public void onLock( LockMonitor lock )
+        {
+            push( lock );
+        }
+
+        @Override
+        public void onWait( WaitMonitor wait )
+        {
+            push( wait );
+        }
+
+        private void push( StackElement element )
+        {
+            if ( depth == stack.length ) stack = Arrays.copyOf( stack, depth * 2 );
+            stack[depth++] = element;
+        }
+
+        @Override
+        public void onThreadEnd()
+        {
+            StackTrie.Node node = stacks.insert( stack, depth );
+            long[] count = container.counts.get( node );
+            if ( count == null ) container.counts.put( node, count = new long[1] );
+            count[0]++;
+            container.threads++;
+            container.states[state == null ? STATES.length : state.ordinal()]++;
+        }
+    }
+
+    /**
+     * Prints each container with its number of threads per state, and its
+     * most common stacks.
+     *
+     * @param top the number of stacks to print per container.
+     * @param depth the number of frames to print of each stack.
+     */
+    public void print( PrintStream out, int top, int depth )
+    {
+        for ( Container container : containers.values() )
+        {
+            out.print( container.name );
+            if ( container.parent != null ) out.print( " (in " + container.parent + ")" );
+            out.println( ": " + container.threads + " threads, " + container.counts.size() + " distinct stacks" );
+            if ( container.threads != 0 )
+            {
+                out.print( " " );
+                for ( int i = 0; i < STATES.length; i++ )
+                {
+                    if ( container.states[i] != 0 ) out.print( " " + STATES[i] + "=" + container.states[i] );
+                }
+                out.println();
+            }
+            List<Map.Entry<StackTrie.Node, long[]>> stacks = new ArrayList<Map.Entry<StackTrie.Node, long[]>>(
+                    container.counts.entrySet() );
+            Collections.sort( stacks, new Comparator<Map.Entry<StackTrie.Node, long[]>>()
+            {
+                public int compare( Map.Entry<StackTrie.Node, long[]> a, Map.Entry<StackTrie.Node, long[]> b )
+                {
+                    return Long.compare( b.getValue()[0], a.getValue()[0] );
+                }
+            } );
+            for ( Map.Entry<StackTrie.Node, long[]> entry : stacks.subList( 0, Math.min( top, stacks.size() ) ) )
+            {
+                StackTrie.Node stack = entry.getKey();
+                out.println( "  " + entry.getValue()[0] + " threads:" );
+                if ( stack.depth == 0 ) out.println( "    (no frames)" );
+                int printed = 0;
+                for ( StackTrie.Node node = stack; node.parent != null && printed < depth; node = node.parent )
+                {
+                    node.element.print( out );
+                    printed++;
+                }
+                if ( printed < stack.depth ) out.println( "    ... " + ( stack.depth - printed ) + " more" );
+            }
+            out.println();
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        int top = 10, depth = 10;
+        int i = 0;
+        for ( ; i < args.length && args[i].startsWith( "--" ); i++ )
+        {
+            if ( "--top".equals( args[i] ) && i + 1 < args.length ) top = Integer.parseInt( args[++i] );
+            else if ( "--depth".equals( args[i] ) && i + 1 < args.length ) depth = Integer.parseInt( args[++i] );
+            else break;
+        }
+        if ( i == args.length )
+        {
+            System.err.println( "usage: ContainerStacks [--top N] [--depth N] <json dump file>..." );
+            System.exit( 1 );
+        }
+        ContainerStacks result = new ContainerStacks();
+        for ( ; i < args.length; i++ )
+        {
+            result.add( new File( args[i] ) );
+        }
+        PrintStream out = new PrintStream( new BufferedOutputStream( System.out, 1 << 16 ) );
+        result.print( out, top, depth );
+        out.flush();
+    }
+}
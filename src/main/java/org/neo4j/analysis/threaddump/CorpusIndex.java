@@ -0,0 +1,593 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.MonitorEntry;
+
+/**
+ * A persistent index over a corpus of thread dump files, kept in a directory
+ * of memory mapped segments. Each file is parsed once, when it is added, and
+ * the index records where in the file each of its dumps is, the state
+ * histogram of each dump, which threads have each frame on their stack and
+ * which dumps have each monitor. Queries are answered from the index alone,
+ * the dumps they match are read by parsing just their range of the file.
+ *
+ * Updates write a new segment with the files that are new or have changed
+ * since they were indexed, the entries of a file in older segments are then
+ * ignored. When there are too many segments they are merged into one.
+ */
+public class CorpusIndex implements Closeable
+{
+    private static final int MAX_SEGMENTS = 8;
+    private static final String SUFFIX = ".idx";
+
+    private final File directory;
+    private final List<IndexSegment> segments = new ArrayList<IndexSegment>();
+    /** The files of each segment that have not been indexed again by a later segment. */
+    private final List<boolean[]> live = new ArrayList<boolean[]>();
+    private int nextSegment;
+
+    public CorpusIndex( File directory ) throws IOException
+    {
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException( "Could not create index directory " + directory );
+        }
+        this.directory = directory;
+        String[] names = directory.list();
+        Arrays.sort( names );
+        for ( String name : names )
+        {
+            if ( !name.startsWith( "segment-" ) || !name.endsWith( SUFFIX ) ) continue;
+            segments.add( new IndexSegment( new File( directory, name ) ) );
+            nextSegment = Integer.parseInt( name.substring( "segment-".length(), name.length() - SUFFIX.length() ) ) + 1;
+        }
+        updateLive();
+    }
+
+    private void updateLive()
+    {
+        live.clear();
+        Map<String, Integer> latest = new HashMap<String, Integer>();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            for ( int f = 0; f < segment.files(); f++ )
+            {
+                latest.put( segment.path( f ), s );
+            }
+        }
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            boolean[] files = new boolean[segment.files()];
+            for ( int f = 0; f < files.length; f++ )
+            {
+                files[f] = latest.get( segment.path( f ) ) == s;
+            }
+            live.add( files );
+        }
+    }
+
+    /**
+     * Indexes the given files, and the files in the given directories, that
+     * are not in the index or have changed since they were indexed.
+     *
+     * @return the number of files that were indexed.
+     */
+    public synchronized int update( Iterable<File> files ) throws IOException
+    {
+        Map<String, long[]> indexed = new HashMap<String, long[]>();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            for ( int f = 0; f < segment.files(); f++ )
+            {
+                if ( live.get( s )[f] )
+                {
+                    indexed.put( segment.path( f ), new long[] { segment.size( f ), segment.modified( f ) } );
+                }
+            }
+        }
+        List<File> changed = new ArrayList<File>();
+        for ( File file : files )
+        {
+            collect( file.getCanonicalFile(), indexed, changed );
+        }
+        if ( changed.isEmpty() ) return 0;
+        Indexer indexer = new Indexer();
+        for ( File file : changed )
+        {
+            indexer.index( file );
+        }
+        add( indexer.segment );
+        if ( segments.size() > MAX_SEGMENTS ) merge();
+        return changed.size();
+    }
+
+    private static void collect( File file, Map<String, long[]> indexed, List<File> changed )
+    {
+        if ( file.isDirectory() )
+        {
+            File[] children = file.listFiles();
+            if ( children == null ) return;
+            Arrays.sort( children );
+            for ( File child : children )
+            {
+                collect( child, indexed, changed );
+            }
+        }
+        else if ( file.isFile() )
+        {
+            long[] entry = indexed.get( file.getPath() );
+            if ( entry == null || entry[0] != file.length() || entry[1] != file.lastModified() ) changed.add( file );
+        }
+    }
+
+    /** Writes a segment under a temporary name, and renames it when it is complete. */
+    private void add( IndexSegmentWriter writer ) throws IOException
+    {
+        File file = new File( directory, String.format( "segment-%08d%s", nextSegment++, SUFFIX ) );
+        File temporary = new File( directory, file.getName() + ".tmp" );
+        writer.write( temporary );
+        Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        segments.add( new IndexSegment( file ) );
+        updateLive();
+    }
+
+    /** Merges all segments into one, leaving out the files that were indexed again. */
+    private void merge() throws IOException
+    {
+        IndexSegmentWriter writer = new IndexSegmentWriter();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            boolean[] files = live.get( s );
+            int[] fileIds = new int[segment.files()];
+            for ( int f = 0; f < fileIds.length; f++ )
+            {
+                fileIds[f] = files[f] ? writer.file( segment.path( f ), segment.size( f ), segment.modified( f ) ) : -1;
+            }
+            int[] dumpIds = new int[segment.dumps()];
+            for ( int d = 0; d < dumpIds.length; d++ )
+            {
+                int file = fileIds[segment.dumpFile( d )];
+                dumpIds[d] = file == -1 ? -1 : writer.dump( file, segment.dumpStart( d ), segment.dumpEnd( d ),
+                        segment.date( d ), segment.histogram( d ) );
+            }
+            int[] stackIds = new int[segment.stacks()];
+            for ( int stack = 0; stack < stackIds.length; stack++ )
+            {
+                stackIds[stack] = -1;
+                for ( long i = segment.threadStart( stack ); i < segment.threadEnd( stack ); i++ )
+                {
+                    long thread = segment.thread( i );
+                    int dump = dumpIds[(int) ( thread >>> 32 )];
+                    if ( dump == -1 ) continue;
+                    if ( stackIds[stack] == -1 ) stackIds[stack] = writer.stack();
+                    writer.thread( stackIds[stack], dump, (int) thread );
+                }
+            }
+            IndexSegment.Dictionary frames = segment.frames();
+            for ( int key = 0; key < frames.size(); key++ )
+            {
+                for ( int i = frames.start( key ); i < frames.end( key ); i++ )
+                {
+                    int stack = stackIds[frames.posting( i )];
+                    if ( stack != -1 ) writer.frame( frames.key( key ), stack );
+                }
+            }
+            IndexSegment.Dictionary monitors = segment.monitors();
+            for ( int key = 0; key < monitors.size(); key++ )
+            {
+                for ( int i = monitors.start( key ); i < monitors.end( key ); i++ )
+                {
+                    int dump = dumpIds[monitors.posting( i )];
+                    if ( dump != -1 ) writer.monitor( monitors.key( key ), dump );
+                }
+            }
+        }
+        List<IndexSegment> merged = new ArrayList<IndexSegment>( segments );
+        segments.clear();
+        add( writer );
+        for ( IndexSegment segment : merged )
+        {
+            segment.close();
+            if ( !segment.file.delete() ) throw new IOException( "Could not delete merged segment " + segment.file );
+        }
+    }
+
+    /** Parses files into a new segment, sharing one stack trie so that each distinct stack is indexed once. */
+    private static final class Indexer
+    {
+        final IndexSegmentWriter segment = new IndexSegmentWriter();
+        private final FrameTable frames = new FrameTable();
+        private final StackTrie stacks = new StackTrie();
+        private final Map<StackTrie.Node, Integer> stackIds = new HashMap<StackTrie.Node, Integer>();
+
+        void index( File file ) throws IOException
+        {
+            long size = file.length(), modified = file.lastModified();
+            int id = segment.file( file.getPath(), size, modified );
+            FileChannel channel = new RandomAccessFile( file, "r" ).getChannel();
+            try
+            {
+                DumpOffsets chunks = new DumpOffsets( new MappedChunkSource( channel, 0, size ) );
+                ThreadDumpParser parser = new ThreadDumpParser( chunks, frames );
+                ThreadDumpBuilder builder = new ThreadDumpBuilder( stacks );
+                // the range of a dump ends where the next dump starts
+                ThreadDump previous = null;
+                long start = 0;
+                try
+                {
+                    while ( parser.next( builder ) )
+                    {
+                        if ( previous != null ) add( id, previous, start, chunks.start );
+                        previous = builder.dump();
+                        start = chunks.start;
+                        chunks.ended();
+                    }
+                }
+                catch ( IllegalArgumentException e )
+                {
+                    System.err.println( file + ": indexing stopped at unparseable line: " + e.getMessage() );
+                }
+                if ( previous != null ) add( id, previous, start, size );
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+
+        private void add( int file, ThreadDump dump, long start, long end )
+        {
+            StateHistogram states = new StateHistogram( dump.date() );
+            for ( ThreadData thread : dump )
+            {
+                states.add( thread.state() );
+            }
+            int id = segment.dump( file, start, end, dump.date(), states.counts() );
+            int index = 0;
+            for ( ThreadData thread : dump )
+            {
+                Integer stack = stackIds.get( thread.stack() );
+                if ( stack == null )
+                {
+                    stackIds.put( thread.stack(), stack = segment.stack() );
+                    for ( StackTrie.Node node = thread.stack(); node.parent != null; node = node.parent )
+                    {
+                        if ( node.element instanceof MethodEntry )
+                        {
+                            segment.frame( ( (MethodEntry) node.element ).line(), stack );
+                        }
+                    }
+                }
+                segment.thread( stack, id, index++ );
+                for ( StackTrie.Node node = thread.stack(); node.parent != null; node = node.parent )
+                {
+                    if ( node.element instanceof MonitorEntry ) segment.monitor( ( (MonitorEntry) node.element ).id, id );
+                }
+            }
+        }
+    }
+
+    /**
+     * Records where in the file the dump that the parser is reading starts:
+     * at the last header before its first thread, or at its first thread if
+     * it has no header.
+     */
+    private static final class DumpOffsets implements ChunkSource
+    {
+        private final MappedChunkSource source;
+        private long header = -1;
+        private boolean started;
+        long start;
+
+        DumpOffsets( MappedChunkSource source )
+        {
+            this.source = source;
+        }
+
+        public boolean next( ByteChunk chunk ) throws IOException
+        {
+            if ( !source.next( chunk ) ) return false;
+            if ( chunk.isHeader() )
+            {
+                header = source.offset( chunk );
+            }
+            else if ( !started && ThreadDumpParser.isThread( chunk ) )
+            {
+                start = header != -1 ? header : source.offset( chunk );
+                header = -1;
+                started = true;
+            }
+            return true;
+        }
+
+        /** Called when the parser has ended the current dump. */
+        void ended()
+        {
+            started = false;
+        }
+    }
+
+    /** @return all dumps in the index, file by file in the order they were indexed. */
+    public synchronized List<Dump> dumps()
+    {
+        List<Dump> result = new ArrayList<Dump>();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            for ( int d = 0; d < segment.dumps(); d++ )
+            {
+                if ( live.get( s )[segment.dumpFile( d )] ) result.add( new Dump( segment, d ) );
+            }
+        }
+        return result;
+    }
+
+    /** @return the dumps that have a thread that holds or waits for the given monitor. */
+    public synchronized List<Dump> monitor( String id )
+    {
+        List<Dump> result = new ArrayList<Dump>();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            IndexSegment.Dictionary monitors = segment.monitors();
+            int key = monitors.find( id );
+            if ( key < 0 ) continue;
+            for ( int i = monitors.start( key ); i < monitors.end( key ); i++ )
+            {
+                int dump = monitors.posting( i );
+                if ( live.get( s )[segment.dumpFile( dump )] ) result.add( new Dump( segment, dump ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the threads that have a frame that matches <code>filter</code>,
+     *         in the order of their dumps.
+     */
+    public synchronized List<Hit> query( FrameFilter filter )
+    {
+        List<Hit> result = new ArrayList<Hit>();
+        for ( int s = 0; s < segments.size(); s++ )
+        {
+            IndexSegment segment = segments.get( s );
+            IndexSegment.Dictionary frames = segment.frames();
+            BitSet stacks = new BitSet( segment.stacks() );
+            for ( int key = 0; key < frames.size(); key++ )
+            {
+                if ( !filter.matches( frames.key( key ) ) ) continue;
+                for ( int i = frames.start( key ); i < frames.end( key ); i++ )
+                {
+                    stacks.set( frames.posting( i ) );
+                }
+            }
+            long[] threads = new long[16];
+            int count = 0;
+            for ( int stack = stacks.nextSetBit( 0 ); stack >= 0; stack = stacks.nextSetBit( stack + 1 ) )
+            {
+                for ( long i = segment.threadStart( stack ); i < segment.threadEnd( stack ); i++ )
+                {
+                    if ( count == threads.length ) threads = Arrays.copyOf( threads, count * 2 );
+                    threads[count++] = segment.thread( i );
+                }
+            }
+            Arrays.sort( threads, 0, count );
+            Dump dump = null;
+            for ( int i = 0; i < count; i++ )
+            {
+                int number = (int) ( threads[i] >>> 32 );
+                if ( !live.get( s )[segment.dumpFile( number )] ) continue;
+                if ( dump == null || dump.number != number ) dump = new Dump( segment, number );
+                result.add( new Hit( dump, (int) threads[i] ) );
+            }
+        }
+        return result;
+    }
+
+    public synchronized void close() throws IOException
+    {
+        for ( IndexSegment segment : segments )
+        {
+            segment.close();
+        }
+        segments.clear();
+        live.clear();
+    }
+
+    /** A dump in the index, that can be read from its file. */
+    public static final class Dump
+    {
+        private final int number;
+        private final File file;
+        private final long size, modified, start, end;
+        private final StateHistogram states;
+
+        Dump( IndexSegment segment, int number )
+        {
+            int file = segment.dumpFile( number );
+            this.number = number;
+            this.file = new File( segment.path( file ) );
+            this.size = segment.size( file );
+            this.modified = segment.modified( file );
+            this.start = segment.dumpStart( number );
+            this.end = segment.dumpEnd( number );
+            this.states = new StateHistogram( segment.date( number ), segment.histogram( number ) );
+        }
+
+        public File file()
+        {
+            return file;
+        }
+
+        /** @return the position in the file where this dump starts. */
+        public long offset()
+        {
+            return start;
+        }
+
+        public StateHistogram states()
+        {
+            return states;
+        }
+
+        /** Parses this dump from its file, without reading the rest of the file. */
+        public ThreadDump read() throws IOException
+        {
+            if ( file.length() != size || file.lastModified() != modified )
+            {
+                throw new IOException( file + " has changed since it was indexed" );
+            }
+            FileChannel channel = new RandomAccessFile( file, "r" ).getChannel();
+            try
+            {
+                MappedThreadDumpFile dumps = new MappedThreadDumpFile( channel, start, end, new FrameTable(),
+                        new StackTrie() );
+                if ( !dumps.hasNext() ) throw new IOException( "No thread dump at " + start + " in " + file );
+                return dumps.next();
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return file + "@" + start + ": " + states;
+        }
+    }
+
+    /** A thread of an indexed dump. */
+    public static final class Hit
+    {
+        private final Dump dump;
+        private final int thread;
+
+        Hit( Dump dump, int thread )
+        {
+            this.dump = dump;
+            this.thread = thread;
+        }
+
+        public Dump dump()
+        {
+            return dump;
+        }
+
+        /** @return the index of the thread in its dump. */
+        public int thread()
+        {
+            return thread;
+        }
+
+        /** Parses the dump of this thread from its file, see {@link Dump#read()}. */
+        public ThreadData read() throws IOException
+        {
+            return dump.read().thread( thread );
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "usage: CorpusIndex <index dir> update <dump file or dir>..." );
+            System.err.println( "       CorpusIndex <index dir> frames <pattern>..." );
+            System.err.println( "       CorpusIndex <index dir> monitor <id>" );
+            System.err.println( "       CorpusIndex <index dir> states" );
+            System.exit( 1 );
+        }
+        CorpusIndex index = new CorpusIndex( new File( args[0] ) );
+        try
+        {
+            String[] operands = Arrays.copyOfRange( args, 2, args.length );
+            long start = System.nanoTime();
+            if ( "update".equals( args[1] ) )
+            {
+                List<File> files = new ArrayList<File>();
+                for ( String operand : operands )
+                {
+                    files.add( new File( operand ) );
+                }
+                System.out.println( "Indexed " + index.update( files ) + " files" );
+            }
+            else if ( "frames".equals( args[1] ) )
+            {
+                ThreadDump current = null;
+                Dump dump = null;
+                for ( Hit hit : index.query( new FrameFilter( operands ) ) )
+                {
+                    if ( hit.dump() != dump )
+                    {
+                        dump = hit.dump();
+                        current = dump.read();
+                        System.out.println( dump.file() + "@" + dump.offset() + ": " + current );
+                    }
+                    System.out.println( "  " + current.thread( hit.thread() ).id );
+                }
+            }
+            else if ( "monitor".equals( args[1] ) && operands.length == 1 )
+            {
+                for ( Dump dump : index.monitor( operands[0] ) )
+                {
+                    System.out.println( dump );
+                }
+            }
+            else if ( "states".equals( args[1] ) )
+            {
+                for ( Dump dump : index.dumps() )
+                {
+                    System.out.println( dump );
+                }
+            }
+            else
+            {
+                System.err.println( "Unknown command: " + args[1] );
+                System.exit( 1 );
+            }
+            System.err.println( ( System.nanoTime() - start ) / 1000000 + "ms" );
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+
+/**
+ * Aggregates the stacks of the threads in many dumps into folded stacks, the
+ * input format of flame graph tools: the frames of a stack from the bottom up,
+ * separated by <code>;</code>, followed by the number of times the stack was
+ * seen.
+ *
+ * Stacks are counted by their node in the {@link StackTrie}, which identifies
+ * a stack without building its text. The text is only built once per distinct
+ * stack, when the result is printed.
+ */
+public class FoldedStacks
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final boolean byState;
+    private final String filter;
+    private final Map<StackTrie.Node, long[]> counts = new HashMap<StackTrie.Node, long[]>();
+
+    /**
+     * @param byState if each stack should be counted separately per thread
+     *            state, with the state as the bottom frame.
+     * @param filter only count the threads that have a frame that contains
+     *            this, or all threads if <code>null</code>.
+     */
+    public FoldedStacks( boolean byState, String filter )
+    {
+        this.byState = byState;
+        this.filter = filter;
+    }
+
+    public void add( ThreadDump dump )
+    {
+        for ( ThreadData thread : dump )
+        {
+            if ( thread.isSystemThread() || thread.stack().depth == 0 || !thread.matches( filter ) ) continue;
+            long[] count = counts.get( thread.stack() );
+            if ( count == null ) counts.put( thread.stack(), count = new long[byState ? STATES.length : 1] );
+            count[byState ? thread.state().ordinal() : 0]++;
+        }
+    }
+
+    /** Adds the counts of <code>other</code>, which must have the same settings, to this. */
+    public void merge( FoldedStacks other )
+    {
+        for ( Map.Entry<StackTrie.Node, long[]> entry : other.counts.entrySet() )
+        {
+            long[] count = counts.get( entry.getKey() );
+            if ( count == null )
+            {
+                counts.put( entry.getKey(), entry.getValue().clone() );
+            }
+            else
+            {
+                for ( int i = 0; i < count.length; i++ )
+                {
+                    count[i] += entry.getValue()[i];
+                }
+            }
+        }
+    }
+
+    public void print( PrintStream out )
+    {
+        // stacks from different tries (files) can have the same text
+        Map<String, long[]> folded = new LinkedHashMap<String, long[]>();
+        StringBuilder line = new StringBuilder();
+        for ( Map.Entry<StackTrie.Node, long[]> entry : counts.entrySet() )
+        {
+            line.setLength( 0 );
+            StackElement[] stack = entry.getKey().toArray();
+            for ( int i = stack.length - 1; i >= 0; i-- )
+            {
+                if ( !( stack[i] instanceof MethodEntry ) ) continue;
+                if ( line.length() != 0 ) line.append( ';' );
+                line.append( ( (MethodEntry) stack[i] ).line() );
+            }
+            String frames = line.toString();
+            long[] count = folded.get( frames );
+            if ( count == null ) folded.put( frames, entry.getValue().clone() );
+            else for ( int i = 0; i < count.length; i++ )
+                count[i] += entry.getValue()[i];
+        }
+        for ( Map.Entry<String, long[]> entry : folded.entrySet() )
+        {
+            long[] count = entry.getValue();
+            for ( int i = 0; i < count.length; i++ )
+            {
+                if ( count[i] == 0 ) continue;
+                if ( byState ) out.print( STATES[i] + ";" );
+                out.print( entry.getKey() );
+                out.print( ' ' );
+                out.println( count[i] );
+            }
+        }
+    }
+
+    /**
+     * Aggregates all dumps of <code>dumps</code>, in tasks of a batch of dumps
+     * each on <code>pool</code>, and merges the partial results.
+     */
+    public static FoldedStacks aggregate( Iterable<ThreadDump> dumps, final boolean byState, final String filter,
+            ForkJoinPool pool )
+    {
+        return new ParallelAggregation<FoldedStacks>()
+        {
+            @Override
+            FoldedStacks create()
+            {
+                return new FoldedStacks( byState, filter );
+            }
+
+            @Override
+            void add( FoldedStacks result, ThreadDump dump )
+            {
+                result.add( dump );
+            }
+
+            @Override
+            void merge( FoldedStacks result, FoldedStacks partial )
+            {
+                result.merge( partial );
+            }
+        }.aggregate( dumps, pool );
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        boolean byState = false;
+        String filter = null;
+        int i = 0;
+        for ( ; i < args.length && args[i].startsWith( "--" ); i++ )
+        {
+            if ( "--states".equals( args[i] ) ) byState = true;
+            else if ( "--filter".equals( args[i] ) && i + 1 < args.length ) filter = args[++i];
+            else break;
+        }
+        if ( i == args.length )
+        {
+            System.err.println( "usage: FoldedStacks [--states] [--filter text] <dump file>..." );
+            System.exit( 1 );
+        }
+        FoldedStacks result = new FoldedStacks( byState, filter );
+        for ( ; i < args.length; i++ )
+        {
+            final ParallelThreadDumpFile dumps = new ParallelThreadDumpFile( new File( args[i] ) );
+            try
+            {
+                result.merge( aggregate( new Iterable<ThreadDump>()
+                {
+                    public Iterator<ThreadDump> iterator()
+                    {
+                        return dumps;
+                    }
+                }, byState, filter, ForkJoinPool.commonPool() ) );
+            }
+            finally
+            {
+                dumps.close();
+            }
+        }
+        PrintStream out = new PrintStream( new BufferedOutputStream( System.out, 1 << 16 ) );
+        result.print( out );
+        out.flush();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+
+/**
+ * Matches frames against many substring patterns at once. The patterns are
+ * compiled into an Aho-Corasick automaton, so a frame is matched in a single
+ * pass over its text, however many patterns there are.
+ */
+public final class FrameFilter
+{
+    private final State root = new State();
+
+    public FrameFilter( String... patterns )
+    {
+        for ( String pattern : patterns )
+        {
+            State state = root;
+            for ( int i = 0; i < pattern.length(); i++ )
+            {
+                state = state.add( pattern.charAt( i ) );
+            }
+            state.output = true;
+        }
+        link();
+    }
+
+    /** Sets the failure links breadth first, and propagates outputs along them. */
+    private void link()
+    {
+        Queue<State> queue = new ArrayDeque<State>();
+        for ( int i = 0; i < root.size; i++ )
+        {
+            root.targets[i].fail = root;
+            queue.add( root.targets[i] );
+        }
+        while ( !queue.isEmpty() )
+        {
+            State state = queue.poll();
+            for ( int i = 0; i < state.size; i++ )
+            {
+                char c = state.labels[i];
+                State target = state.targets[i], fail = state.fail;
+                State next;
+                while ( ( next = fail.get( c ) ) == null && fail != root )
+                {
+                    fail = fail.fail;
+                }
+                target.fail = next == null ? root : next;
+                target.output |= target.fail.output;
+                queue.add( target );
+            }
+        }
+    }
+
+    /** @return <code>true</code> if any of the patterns occurs in <code>text</code>. */
+    public boolean matches( CharSequence text )
+    {
+        if ( root.output ) return true; // the empty pattern
+        State state = root;
+        for ( int i = 0, length = text.length(); i < length; i++ )
+        {
+            char c = text.charAt( i );
+            State next;
+            while ( ( next = state.get( c ) ) == null && state != root )
+            {
+                state = state.fail;
+            }
+            if ( next != null )
+            {
+                state = next;
+                if ( state.output ) return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches( StackElement element )
+    {
+        return element instanceof MethodEntry && matches( ( (MethodEntry) element ).line() );
+    }
+
+    private static final class State
+    {
+        private char[] labels = new char[2];
+        private State[] targets = new State[2];
+        private int size;
+        private State fail;
+        private boolean output;
+
+        State get( char c )
+        {
+            for ( int i = 0; i < size; i++ )
+            {
+                if ( labels[i] == c ) return targets[i];
+            }
+            return null;
+        }
+
+        State add( char c )
+        {
+            State target = get( c );
+            if ( target != null ) return target;
+            if ( size == labels.length )
+            {
+                labels = Arrays.copyOf( labels, size * 2 );
+                targets = Arrays.copyOf( targets, size * 2 );
+            }
+            labels[size] = c;
+            return targets[size++] = new State();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+
+/**
+ * An inverted index from frames to the threads, in any of the indexed dumps,
+ * that have the frame on their stack. Each distinct stack is only indexed
+ * once, the threads are found through the stacks they share. A query only
+ * matches the distinct frames against the filter, and then visits the threads
+ * of the matching stacks.
+ */
+public class FrameIndex
+{
+    private final List<ThreadDump> dumps = new ArrayList<ThreadDump>();
+    private final Map<MethodEntry, Postings> stacksByFrame = new HashMap<MethodEntry, Postings>();
+    private final Map<StackTrie.Node, Integer> stackIds = new HashMap<StackTrie.Node, Integer>();
+    /** (dump &lt;&lt; 32 | thread) of the threads of each stack. */
+    private final List<long[]> threadsByStack = new ArrayList<long[]>();
+    private int[] threadCounts = new int[16];
+
+    public void add( ThreadDump dump )
+    {
+        int number = dumps.size();
+        dumps.add( dump );
+        int index = 0;
+        for ( ThreadData thread : dump )
+        {
+            add( thread.stack(), ( (long) number << 32 ) | index++ );
+        }
+    }
+
+    private void add( StackTrie.Node stack, long thread )
+    {
+        Integer id = stackIds.get( stack );
+        if ( id == null )
+        {
+            id = stackIds.size();
+            stackIds.put( stack, id );
+            threadsByStack.add( new long[4] );
+            if ( id == threadCounts.length ) threadCounts = Arrays.copyOf( threadCounts, id * 2 );
+            for ( StackTrie.Node node = stack; node.parent != null; node = node.parent )
+            {
+                if ( !( node.element instanceof MethodEntry ) ) continue;
+                Postings postings = stacksByFrame.get( node.element );
+                if ( postings == null ) stacksByFrame.put( (MethodEntry) node.element, postings = new Postings() );
+                postings.add( id ); // recursive frames add the same stack again, queries ignore that
+            }
+        }
+        long[] threads = threadsByStack.get( id );
+        int count = threadCounts[id];
+        if ( count == threads.length ) threadsByStack.set( id, threads = Arrays.copyOf( threads, count * 2 ) );
+        threads[count] = thread;
+        threadCounts[id] = count + 1;
+    }
+
+    /** @return the number of distinct frames in this index. */
+    public int frames()
+    {
+        return stacksByFrame.size();
+    }
+
+    /**
+     * @return the threads that have a frame that matches <code>filter</code>,
+     *         per dump, in the order the dumps were added.
+     */
+    public Map<ThreadDump, List<ThreadData>> query( FrameFilter filter )
+    {
+        BitSet stacks = new BitSet( stackIds.size() );
+        for ( Map.Entry<MethodEntry, Postings> entry : stacksByFrame.entrySet() )
+        {
+            if ( !filter.matches( entry.getKey() ) ) continue;
+            Postings postings = entry.getValue();
+            for ( int i = 0; i < postings.size; i++ )
+            {
+                stacks.set( postings.ids[i] );
+            }
+        }
+        long[] threads = new long[16];
+        int count = 0;
+        for ( int id = stacks.nextSetBit( 0 ); id >= 0; id = stacks.nextSetBit( id + 1 ) )
+        {
+            int size = threadCounts[id];
+            if ( count + size > threads.length ) threads = Arrays.copyOf( threads, Math.max( count + size, count * 2 ) );
+            System.arraycopy( threadsByStack.get( id ), 0, threads, count, size );
+            count += size;
+        }
+        Arrays.sort( threads, 0, count );
+        Map<ThreadDump, List<ThreadData>> result = new LinkedHashMap<ThreadDump, List<ThreadData>>();
+        for ( int i = 0; i < count; i++ )
+        {
+            ThreadDump dump = dumps.get( (int) ( threads[i] >>> 32 ) );
+            List<ThreadData> inDump = result.get( dump );
+            if ( inDump == null ) result.put( dump, inDump = new ArrayList<ThreadData>() );
+            inDump.add( dump.thread( (int) threads[i] ) );
+        }
+        return result;
+    }
+
+    private static final class Postings
+    {
+        private int[] ids = new int[2];
+        private int size;
+
+        void add( int id )
+        {
+            if ( size > 0 && ids[size - 1] == id ) return;
+            if ( size == ids.length ) ids = Arrays.copyOf( ids, size * 2 );
+            ids[size++] = id;
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "usage: FrameIndex <dump file> <pattern>..." );
+            System.exit( 1 );
+        }
+        FrameIndex index = new FrameIndex();
+        MappedThreadDumpFile dumps = new MappedThreadDumpFile( new File( args[0] ) );
+        try
+        {
+            while ( dumps.hasNext() )
+            {
+                index.add( dumps.next() );
+            }
+        }
+        finally
+        {
+            dumps.close();
+        }
+        FrameFilter filter = new FrameFilter( Arrays.copyOfRange( args, 1, args.length ) );
+        for ( Map.Entry<ThreadDump, List<ThreadData>> entry : index.query( filter ).entrySet() )
+        {
+            System.out.println( entry.getKey() );
+            for ( ThreadData thread : entry.getValue() )
+            {
+                System.out.println( "  " + thread.id );
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+
+/**
+ * Interns method frames, so that each distinct frame is represented by one
+ * shared {@link MethodEntry} with a compact int id. Frames are looked up by
+ * their raw bytes, the text of a frame is only decoded the first time it is
+ * seen.
+ *
+ * The table is split in segments with a lock each, so that it can be shared
+ * by the parsers of dump regions that run in parallel.
+ */
+final class FrameTable
+{
+    private static final Charset DEFAULT = Charset.defaultCharset();
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_MASK = ( 1 << SEGMENT_BITS ) - 1;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    FrameTable()
+    {
+        for ( int i = 0; i < segments.length; i++ )
+        {
+            segments[i] = new Segment( this, i );
+        }
+    }
+
+    MethodEntry intern( String frame )
+    {
+        byte[] key = frame.getBytes( DEFAULT );
+        int hash = hash( key );
+        return segment( hash ).intern( hash, key, frame );
+    }
+
+    MethodEntry intern( ByteChunk chunk, int line, int from )
+    {
+        int hash = chunk.hash( line, from );
+        return segment( hash ).intern( hash, chunk, line, from );
+    }
+
+    /**
+     * Interns the frame of the first <code>length</code> bytes of
+     * <code>bytes</code>, which are only copied if the frame is new.
+     */
+    MethodEntry intern( byte[] bytes, int length )
+    {
+        int hash = hash( bytes, length );
+        return segment( hash ).intern( hash, bytes, length );
+    }
+
+    /** @return the number of distinct frames in this table. */
+    int size()
+    {
+        int size = 0;
+        for ( Segment segment : segments )
+        {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segment( int hash )
+    {
+        return segments[( hash >>> 16 ) & SEGMENT_MASK];
+    }
+
+    static int hash( byte[] key )
+    {
+        return hash( key, key.length );
+    }
+
+    private static int hash( byte[] bytes, int length )
+    {
+        int hash = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            hash = 31 * hash + bytes[i];
+        }
+        return spread( hash );
+    }
+
+    static int spread( int hash )
+    {
+        return hash ^ ( hash >>> 16 ) ^ ( hash >>> 7 );
+    }
+
+    private static final class Segment
+    {
+        private final FrameTable table;
+        private final int number;
+        private int[] slots = new int[64];
+        private int[] hashes = new int[16];
+        private byte[][] keys = new byte[16][];
+        private MethodEntry[] entries = new MethodEntry[16];
+        private int size;
+
+        Segment( FrameTable table, int number )
+        {
+            this.table = table;
+            this.number = number;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized MethodEntry intern( int hash, byte[] key, String frame )
+        {
+            int slot = hash & ( slots.length - 1 );
+            for ( int index; ( index = slots[slot] - 1 ) != -1; slot = ( slot + 1 ) & ( slots.length - 1 ) )
+            {
+                if ( hashes[index] == hash && Arrays.equals( keys[index], key ) ) return entries[index];
+            }
+            return add( slot, hash, key, frame );
+        }
+
+        synchronized MethodEntry intern( int hash, ByteChunk chunk, int line, int from )
+        {
+            int slot = hash & ( slots.length - 1 );
+            for ( int index; ( index = slots[slot] - 1 ) != -1; slot = ( slot + 1 ) & ( slots.length - 1 ) )
+            {
+                if ( hashes[index] == hash && chunk.regionEquals( line, from, keys[index] ) ) return entries[index];
+            }
+            return add( slot, hash, chunk.bytes( line, from ), chunk.string( line, from ) );
+        }
+
+        synchronized MethodEntry intern( int hash, byte[] bytes, int length )
+        {
+            int slot = hash & ( slots.length - 1 );
+            for ( int index; ( index = slots[slot] - 1 ) != -1; slot = ( slot + 1 ) & ( slots.length - 1 ) )
+            {
+                if ( hashes[index] == hash && regionEquals( keys[index], bytes, length ) ) return entries[index];
+            }
+            return add( slot, hash, Arrays.copyOf( bytes, length ), new String( bytes, 0, length, DEFAULT ) );
+        }
+
+        private static boolean regionEquals( byte[] key, byte[] bytes, int length )
+        {
+            if ( key.length != length ) return false;
+            for ( int i = 0; i < length; i++ )
+            {
+                if ( key[i] != bytes[i] ) return false;
+            }
+            return true;
+        }
+
+        private MethodEntry add( int slot, int hash, byte[] key, String frame )
+        {
+            if ( size == entries.length )
+            {
+                hashes = Arrays.copyOf( hashes, size * 2 );
+                keys = Arrays.copyOf( keys, size * 2 );
+                entries = Arrays.copyOf( entries, size * 2 );
+            }
+            MethodEntry entry = new MethodEntry( table, ( size << SEGMENT_BITS ) | number, frame );
+            hashes[size] = hash;
+            keys[size] = key;
+            entries[size] = entry;
+            slots[slot] = ++size;
+            if ( size * 2 > slots.length ) rehash();
+            return entry;
+        }
+
+        private void rehash()
+        {
+            int[] slots = new int[this.slots.length * 2];
+            for ( int index = 0; index < size; index++ )
+            {
+                int slot = hashes[index] & ( slots.length - 1 );
+                while ( slots[slot] != 0 )
+                {
+                    slot = ( slot + 1 ) & ( slots.length - 1 );
+                }
+                slots[slot] = index + 1;
+            }
+            this.slots = slots;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes graphviz files. Text is appended (and HTML escaped in the same pass)
+ * to a reusable character buffer, that is encoded into a byte buffer and
+ * written to the channel when it fills up.
+ *
+ * The size of the graph can be bounded by capping the number of frames shown
+ * for each thread, and by pruning: collapsing the threads that have identical
+ * stacks and wait on the same monitor into one node.
+ */
+final class GraphvizWriter implements Closeable
+{
+    static final int ALL_FRAMES = Integer.MAX_VALUE;
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+    private final CharBuffer chars = CharBuffer.allocate( 8 * 1024 );
+    private final ByteBuffer bytes = ByteBuffer.allocate( 64 * 1024 );
+    private final int maxDepth;
+    private final boolean prune;
+
+    GraphvizWriter( File file, int maxDepth, boolean prune ) throws IOException
+    {
+        this( new FileOutputStream( file ).getChannel(), maxDepth, prune );
+    }
+
+    GraphvizWriter( WritableByteChannel channel, int maxDepth, boolean prune )
+    {
+        this.channel = channel;
+        this.maxDepth = maxDepth;
+        this.prune = prune;
+    }
+
+    /** @return the maximal number of frames to write for a thread. */
+    int maxDepth()
+    {
+        return maxDepth;
+    }
+
+    boolean prune()
+    {
+        return prune;
+    }
+
+    GraphvizWriter append( String text ) throws IOException
+    {
+        for ( int i = 0, length = text.length(); i < length; i++ )
+        {
+            if ( !chars.hasRemaining() ) drain( false );
+            chars.put( text.charAt( i ) );
+        }
+        return this;
+    }
+
+    GraphvizWriter append( int value ) throws IOException
+    {
+        return append( Integer.toString( value ) );
+    }
+
+    /** Appends <code>text</code> with the characters that are special in HTML labels escaped. */
+    GraphvizWriter escape( String text ) throws IOException
+    {
+        for ( int i = 0, length = text.length(); i < length; i++ )
+        {
+            char c = text.charAt( i );
+            switch ( c )
+            {
+            case '&':
+                append( "&amp;" );
+                break;
+            case '<':
+                append( "&lt;" );
+                break;
+            case '>':
+                append( "&gt;" );
+                break;
+            default:
+                if ( !chars.hasRemaining() ) drain( false );
+                chars.put( c );
+            }
+        }
+        return this;
+    }
+
+    /** Appends the port of the row of the frame at <code>index</code>, taking the depth cap into account. */
+    GraphvizWriter port( int index ) throws IOException
+    {
+        return index < maxDepth ? append( "l" ).append( index ) : append( "lmore" );
+    }
+
+    private void drain( boolean endOfInput ) throws IOException
+    {
+        chars.flip();
+        for ( ;; )
+        {
+            CoderResult result = encoder.encode( chars, bytes, endOfInput );
+            if ( result.isOverflow() )
+            {
+                write();
+            }
+            else if ( result.isUnderflow() )
+            {
+                break;
+            }
+            else
+            {
+                result.throwException();
+            }
+        }
+        chars.compact();
+    }
+
+    private void write() throws IOException
+    {
+        bytes.flip();
+        while ( bytes.hasRemaining() )
+        {
+            channel.write( bytes );
+        }
+        bytes.clear();
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            drain( true );
+            while ( encoder.flush( bytes ).isOverflow() )
+            {
+                write();
+            }
+            write();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
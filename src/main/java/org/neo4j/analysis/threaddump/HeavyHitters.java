@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the most frequent keys of a weighted stream in fixed memory, with
+ * the Space-Saving algorithm: at most <code>capacity</code> keys are counted,
+ * a new key takes over the counter with the smallest count. The count of a
+ * key is never too low, and at most the total weight divided by the capacity
+ * too high; the error of each counter is tracked, so that the count minus the
+ * error is a guaranteed lower bound.
+ *
+ * The counters are kept in a binary min heap by count, so each update takes
+ * logarithmic time in the capacity. Summaries of different parts of a stream
+ * can be merged, with the same error bound for the whole stream.
+ */
+final class HeavyHitters<K>
+{
+    private final int capacity;
+    private final Map<K, Counter<K>> counters;
+    private final Counter<K>[] heap;
+    private int size;
+    private long total;
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    HeavyHitters( int capacity )
+    {
+        if ( capacity < 1 ) throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+        this.capacity = capacity;
+        this.counters = new HashMap<K, Counter<K>>( capacity * 2 );
+        this.heap = new Counter[capacity];
+    }
+
+    /** @return the capacity needed for counts that are at most <code>error</code> times the total too high. */
+    static int capacity( double error )
+    {
+        if ( !( error > 0 && error < 1 ) ) throw new IllegalArgumentException( "Error must be in (0, 1): " + error );
+        return (int) Math.ceil( 1 / error );
+    }
+
+    void add( K key, long weight )
+    {
+        total += weight;
+        Counter<K> counter = counters.get( key );
+        if ( counter == null && size < capacity )
+        {
+            counter = new Counter<K>( key );
+            counter.count = weight;
+            heap[size] = counter;
+            counters.put( key, counter );
+            siftUp( size++ );
+            return;
+        }
+        if ( counter == null )
+        {
+            // take over the smallest counter, its count is the most the new key can have had
+            counter = heap[0];
+            counters.remove( counter.key );
+            counter.key = key;
+            counter.error = counter.count;
+            counters.put( key, counter );
+        }
+        counter.count += weight;
+        siftDown( counter.index );
+    }
+
+    /** @return the total weight of the stream. */
+    long total()
+    {
+        return total;
+    }
+
+    /** @return the most the count of a key that is not counted can be. */
+    private long missing()
+    {
+        return size < capacity ? 0 : heap[0].count;
+    }
+
+    /**
+     * Adds the summary of another part of the stream to this. A key that is
+     * counted in only one of the summaries gets the smallest count of the
+     * other, as that is the most it can have had there.
+     */
+    void merge( HeavyHitters<K> other )
+    {
+        long missing = missing(), otherMissing = other.missing();
+        List<Counter<K>> merged = new ArrayList<Counter<K>>( size + other.size );
+        for ( int i = 0; i < size; i++ )
+        {
+            Counter<K> counter = heap[i], match = other.counters.get( counter.key );
+            counter.count += match == null ? otherMissing : match.count;
+            counter.error += match == null ? otherMissing : match.error;
+            merged.add( counter );
+        }
+        for ( int i = 0; i < other.size; i++ )
+        {
+            Counter<K> counter = other.heap[i];
+            if ( counters.containsKey( counter.key ) ) continue;
+            Counter<K> copy = new Counter<K>( counter.key );
+            copy.count = counter.count + missing;
+            copy.error = counter.error + missing;
+            merged.add( copy );
+        }
+        Collections.sort( merged, Counter.BY_COUNT );
+        counters.clear();
+        Arrays.fill( heap, null );
+        size = Math.min( capacity, merged.size() );
+        // descending order is a valid heap when read backwards
+        for ( int i = 0; i < size; i++ )
+        {
+            Counter<K> counter = merged.get( size - 1 - i );
+            counter.index = i;
+            heap[i] = counter;
+            counters.put( counter.key, counter );
+        }
+        total += other.total;
+    }
+
+    /** @return the keys with the highest counts, highest first. */
+    List<Counter<K>> top( int k )
+    {
+        List<Counter<K>> top = new ArrayList<Counter<K>>( Arrays.asList( heap ).subList( 0, size ) );
+        Collections.sort( top, Counter.BY_COUNT );
+        return top.subList( 0, Math.min( k, top.size() ) );
+    }
+
+    private void siftUp( int index )
+    {
+        Counter<K> counter = heap[index];
+        for ( int parent; index > 0 && heap[parent = ( index - 1 ) / 2].count > counter.count; index = parent )
+        {
+            heap[index] = heap[parent];
+            heap[index].index = index;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private void siftDown( int index )
+    {
+        Counter<K> counter = heap[index];
+        for ( int child; ( child = index * 2 + 1 ) < size; index = child )
+        {
+            if ( child + 1 < size && heap[child + 1].count < heap[child].count ) child++;
+            if ( counter.count <= heap[child].count ) break;
+            heap[index] = heap[child];
+            heap[index].index = index;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    static final class Counter<K>
+    {
+        static final Comparator<Counter<?>> BY_COUNT = new Comparator<Counter<?>>()
+        {
+            public int compare( Counter<?> a, Counter<?> b )
+            {
+                return a.count != b.count ? ( a.count > b.count ? -1 : 1 ) : 0;
+            }
+        };
+
+        K key;
+        long count, error;
+        private int index;
+
+        private Counter( K key )
+        {
+            this.key = key;
+        }
+
+        /** @return the count this key has at least. */
+        long guaranteed()
+        {
+            return count - error;
+        }
+    }
+}
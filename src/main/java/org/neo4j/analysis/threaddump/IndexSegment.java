@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A segment of a {@link CorpusIndex}, as written by
+ * {@link IndexSegmentWriter}. The files and the keys of the dictionaries are
+ * decoded when the segment is opened, the dump records and all postings are
+ * read from the mapped file when they are used.
+ */
+final class IndexSegment implements Closeable
+{
+    private static final int SLOTS = IndexSegmentWriter.SLOTS;
+
+    final File file;
+    private final FileChannel channel;
+    private final String[] paths;
+    private final long[] files;
+    private final ByteBuffer dumps, dates, stacks;
+    private final int stackCount;
+    private final Dictionary frames, monitors;
+
+    IndexSegment( File file ) throws IOException
+    {
+        this.file = file;
+        this.channel = new RandomAccessFile( file, "r" ).getChannel();
+        try
+        {
+            long size = channel.size();
+            if ( size < 8 + IndexSegmentWriter.TRAILER_SIZE
+                 || map( 0, 8 ).getLong() != IndexSegmentWriter.MAGIC
+                 || map( size - 8, 8 ).getLong() != IndexSegmentWriter.MAGIC )
+            {
+                throw new IOException( file + " is not a corpus index segment" );
+            }
+            ByteBuffer trailer = map( size - IndexSegmentWriter.TRAILER_SIZE, IndexSegmentWriter.TRAILER_SIZE );
+            long[] sections = new long[IndexSegmentWriter.SECTIONS + 1];
+            for ( int i = 0; i < IndexSegmentWriter.SECTIONS; i++ )
+            {
+                sections[i] = trailer.getLong();
+            }
+            sections[IndexSegmentWriter.SECTIONS] = size - IndexSegmentWriter.TRAILER_SIZE;
+            ByteBuffer in = section( sections, 0 );
+            this.paths = new String[in.getInt()];
+            this.files = new long[paths.length * 2];
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                paths[i] = readString( in );
+                files[i * 2] = in.getLong();
+                files[i * 2 + 1] = in.getLong();
+            }
+            this.dumps = section( sections, 1 );
+            this.dates = section( sections, 2 );
+            this.stacks = section( sections, 3 );
+            this.stackCount = stacks.getInt( 0 );
+            this.frames = new Dictionary( section( sections, 4 ) );
+            this.monitors = new Dictionary( section( sections, 5 ) );
+        }
+        catch ( IOException e )
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer section( long[] sections, int section ) throws IOException
+    {
+        return map( sections[section], sections[section + 1] - sections[section] );
+    }
+
+    private ByteBuffer map( long position, long size ) throws IOException
+    {
+        if ( size > Integer.MAX_VALUE ) throw new IOException( "Section too large in " + file );
+        return channel.map( FileChannel.MapMode.READ_ONLY, position, size );
+    }
+
+    private static String readString( ByteBuffer in )
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get( bytes );
+        return new String( bytes, SnapshotWriter.UTF8 );
+    }
+
+    int files()
+    {
+        return paths.length;
+    }
+
+    String path( int file )
+    {
+        return paths[file];
+    }
+
+    long size( int file )
+    {
+        return files[file * 2];
+    }
+
+    long modified( int file )
+    {
+        return files[file * 2 + 1];
+    }
+
+    int dumps()
+    {
+        return dumps.getInt( 0 );
+    }
+
+    private int record( int dump )
+    {
+        return 4 + dump * IndexSegmentWriter.DUMP_RECORD;
+    }
+
+    int dumpFile( int dump )
+    {
+        return dumps.getInt( record( dump ) );
+    }
+
+    long dumpStart( int dump )
+    {
+        return dumps.getLong( record( dump ) + 4 );
+    }
+
+    long dumpEnd( int dump )
+    {
+        return dumps.getLong( record( dump ) + 12 );
+    }
+
+    String date( int dump )
+    {
+        int start = dumps.getInt( record( dump ) + 20 ), length = dumps.getInt( record( dump ) + 24 );
+        byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            bytes[i] = dates.get( 4 + start + i );
+        }
+        return new String( bytes, SnapshotWriter.UTF8 );
+    }
+
+    int[] histogram( int dump )
+    {
+        int[] histogram = new int[SLOTS];
+        for ( int s = 0, pos = record( dump ) + 28; s < SLOTS; s++, pos += 4 )
+        {
+            histogram[s] = dumps.getInt( pos );
+        }
+        return histogram;
+    }
+
+    int stacks()
+    {
+        return stackCount;
+    }
+
+    /** @return the index of the first thread of a stack, see {@link #thread(long)}. */
+    long threadStart( int stack )
+    {
+        return stacks.getLong( 4 + stack * 8 );
+    }
+
+    long threadEnd( int stack )
+    {
+        return stacks.getLong( 4 + ( stack + 1 ) * 8 );
+    }
+
+    /** @return the thread at the given index, as (dump &lt;&lt; 32 | thread). */
+    long thread( long index )
+    {
+        return stacks.getLong( (int) ( 4 + ( stackCount + 1 ) * 8L + index * 8 ) );
+    }
+
+    Dictionary frames()
+    {
+        return frames;
+    }
+
+    Dictionary monitors()
+    {
+        return monitors;
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /** Sorted keys, each with a list of int postings. */
+    static final class Dictionary
+    {
+        private final String[] keys;
+        private final ByteBuffer postings;
+        private final int base;
+
+        Dictionary( ByteBuffer in )
+        {
+            this.keys = new String[in.getInt()];
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                keys[i] = readString( in );
+            }
+            this.postings = in;
+            this.base = in.position() + ( keys.length + 1 ) * 4;
+        }
+
+        int size()
+        {
+            return keys.length;
+        }
+
+        String key( int key )
+        {
+            return keys[key];
+        }
+
+        /** @return the index of <code>key</code>, or a negative number if it is not in the dictionary. */
+        int find( String key )
+        {
+            return Arrays.binarySearch( keys, key );
+        }
+
+        int start( int key )
+        {
+            return postings.getInt( postings.position() + key * 4 );
+        }
+
+        int end( int key )
+        {
+            return start( key + 1 );
+        }
+
+        int posting( int index )
+        {
+            return postings.getInt( base + index * 4 );
+        }
+    }
+}
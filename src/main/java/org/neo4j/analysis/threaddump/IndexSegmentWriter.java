@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the entries of one segment of a {@link CorpusIndex} and writes
+ * them to a file that {@link IndexSegment} reads by memory mapping it.
+ *
+ * The file starts with a magic number, followed by the sections of the
+ * segment: the indexed files, fixed width dump records (file, byte range,
+ * date and state histogram), the dates of the dumps, the threads of each
+ * distinct stack, and two dictionaries, sorted by key, from frames to stacks
+ * and from monitors to dumps. A trailer with the offsets of the sections and
+ * the magic number ends the file.
+ */
+final class IndexSegmentWriter
+{
+    static final long MAGIC = 0x5444494E44583031L; // "TDINDX01"
+    static final int SLOTS = StateHistogram.slots();
+    static final int DUMP_RECORD = 4 + 8 + 8 + 4 + 4 + 4 * SLOTS;
+    static final int SECTIONS = 6;
+    static final int TRAILER_SIZE = 8 * SECTIONS + 8;
+
+    private final List<String> paths = new ArrayList<String>();
+    private long[] files = new long[16];
+    private int dumps;
+    private int[] dumpFiles = new int[16];
+    private long[] ranges = new long[32];
+    private final List<String> dates = new ArrayList<String>();
+    private int[] histograms = new int[16 * SLOTS];
+    private final List<Longs> stacks = new ArrayList<Longs>();
+    private final Map<String, Ints> frames = new TreeMap<String, Ints>();
+    private final Map<String, Ints> monitors = new TreeMap<String, Ints>();
+
+    /** @return the id of a new file with the given path, size and modification time. */
+    int file( String path, long size, long modified )
+    {
+        int id = paths.size();
+        paths.add( path );
+        if ( id * 2 == files.length ) files = Arrays.copyOf( files, files.length * 2 );
+        files[id * 2] = size;
+        files[id * 2 + 1] = modified;
+        return id;
+    }
+
+    /**
+     * @return the id of a new dump, that is read from the bytes between
+     *         <code>start</code> and <code>end</code> of <code>file</code>.
+     */
+    int dump( int file, long start, long end, String date, int[] histogram )
+    {
+        int id = dumps++;
+        if ( id == dumpFiles.length )
+        {
+            dumpFiles = Arrays.copyOf( dumpFiles, id * 2 );
+            ranges = Arrays.copyOf( ranges, id * 4 );
+            histograms = Arrays.copyOf( histograms, id * 2 * SLOTS );
+        }
+        dumpFiles[id] = file;
+        ranges[id * 2] = start;
+        ranges[id * 2 + 1] = end;
+        dates.add( date );
+        System.arraycopy( histogram, 0, histograms, id * SLOTS, SLOTS );
+        return id;
+    }
+
+    /** @return the id of a new distinct stack. */
+    int stack()
+    {
+        stacks.add( new Longs() );
+        return stacks.size() - 1;
+    }
+
+    void thread( int stack, int dump, int thread )
+    {
+        stacks.get( stack ).add( ( (long) dump << 32 ) | thread );
+    }
+
+    void frame( String frame, int stack )
+    {
+        Ints postings = frames.get( frame );
+        if ( postings == null ) frames.put( frame, postings = new Ints() );
+        postings.add( stack );
+    }
+
+    void monitor( String monitor, int dump )
+    {
+        Ints postings = monitors.get( monitor );
+        if ( postings == null ) monitors.put( monitor, postings = new Ints() );
+        postings.add( dump );
+    }
+
+    int dumps()
+    {
+        return dumps;
+    }
+
+    void write( File file ) throws IOException
+    {
+        Output out = new Output( new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 ) );
+        try
+        {
+            long[] sections = new long[SECTIONS];
+            out.writeLong( MAGIC );
+            sections[0] = out.position;
+            out.writeInt( paths.size() );
+            for ( int i = 0; i < paths.size(); i++ )
+            {
+                out.writeString( paths.get( i ) );
+                out.writeLong( files[i * 2] );
+                out.writeLong( files[i * 2 + 1] );
+            }
+            sections[1] = out.position;
+            out.writeInt( dumps );
+            int dateStart = 0;
+            byte[][] dateBytes = new byte[dumps][];
+            for ( int i = 0; i < dumps; i++ )
+            {
+                dateBytes[i] = dates.get( i ).getBytes( SnapshotWriter.UTF8 );
+                out.writeInt( dumpFiles[i] );
+                out.writeLong( ranges[i * 2] );
+                out.writeLong( ranges[i * 2 + 1] );
+                out.writeInt( dateStart );
+                out.writeInt( dateBytes[i].length );
+                for ( int s = 0; s < SLOTS; s++ )
+                {
+                    out.writeInt( histograms[i * SLOTS + s] );
+                }
+                dateStart += dateBytes[i].length;
+            }
+            sections[2] = out.position;
+            out.writeInt( dateStart );
+            for ( byte[] date : dateBytes )
+            {
+                out.write( date );
+            }
+            sections[3] = out.position;
+            out.writeInt( stacks.size() );
+            long start = 0;
+            for ( Longs threads : stacks )
+            {
+                out.writeLong( start );
+                start += threads.size;
+            }
+            out.writeLong( start );
+            for ( Longs threads : stacks )
+            {
+                for ( int i = 0; i < threads.size; i++ )
+                {
+                    out.writeLong( threads.values[i] );
+                }
+            }
+            sections[4] = out.position;
+            writeDictionary( out, frames );
+            sections[5] = out.position;
+            writeDictionary( out, monitors );
+            for ( long section : sections )
+            {
+                out.writeLong( section );
+            }
+            out.writeLong( MAGIC );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void writeDictionary( Output out, Map<String, Ints> dictionary ) throws IOException
+    {
+        out.writeInt( dictionary.size() );
+        for ( String key : dictionary.keySet() )
+        {
+            out.writeString( key );
+        }
+        int start = 0;
+        for ( Ints postings : dictionary.values() )
+        {
+            out.writeInt( start );
+            start += postings.size;
+        }
+        out.writeInt( start );
+        for ( Ints postings : dictionary.values() )
+        {
+            for ( int i = 0; i < postings.size; i++ )
+            {
+                out.writeInt( postings.values[i] );
+            }
+        }
+    }
+
+    /** Ids are added in increasing order, adding the last id again does nothing. */
+    private static final class Ints
+    {
+        int[] values = new int[2];
+        int size;
+
+        void add( int value )
+        {
+            if ( size > 0 && values[size - 1] == value ) return;
+            if ( size == values.length ) values = Arrays.copyOf( values, size * 2 );
+            values[size++] = value;
+        }
+    }
+
+    private static final class Longs
+    {
+        long[] values = new long[2];
+        int size;
+
+        void add( long value )
+        {
+            if ( size == values.length ) values = Arrays.copyOf( values, size * 2 );
+            values[size++] = value;
+        }
+    }
+
+    private static final class Output
+    {
+        private final OutputStream out;
+        long position;
+
+        Output( OutputStream out )
+        {
+            this.out = out;
+        }
+
+        void write( byte[] bytes ) throws IOException
+        {
+            out.write( bytes );
+            position += bytes.length;
+        }
+
+        void writeString( String string ) throws IOException
+        {
+            byte[] bytes = string.getBytes( SnapshotWriter.UTF8 );
+            writeInt( bytes.length );
+            write( bytes );
+        }
+
+        void writeInt( int value ) throws IOException
+        {
+            for ( int shift = 24; shift >= 0; shift -= 8 )
+            {
+                out.write( value >>> shift );
+            }
+            position += 4;
+        }
+
+        void writeLong( long value ) throws IOException
+        {
+            writeInt( (int) ( value >>> 32 ) );
+            writeInt( (int) value );
+        }
+
+        void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
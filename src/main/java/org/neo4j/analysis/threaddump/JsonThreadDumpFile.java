@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the JSON thread dumps that <code>jcmd &lt;pid&gt;
+ * Thread.dump_to_file -format=json</code> writes, streaming, so that dumps of
+ * millions of virtual threads don't need more memory than the threads that
+ * are kept. The threads of all containers are in the one dump, a thread that
+ * is not in the root container has the container in its first line.
+ *
+ * Use {@link ContainerStacks} to only count the stacks per container, without
+ * keeping the threads.
+ *
+ * A file that can't be read, or is not a well formed JSON thread dump, fails
+ * {@link #hasNext()} with an {@link UncheckedIOException}.
+ */
+public class JsonThreadDumpFile implements Iterator<ThreadDump>, Closeable
+{
+    private final JsonThreadDumpParser parser;
+    private final ThreadDumpBuilder builder;
+    private ThreadDump next;
+
+    public JsonThreadDumpFile( File file ) throws IOException
+    {
+        this( new FileInputStream( file ) );
+    }
+
+    public JsonThreadDumpFile( InputStream input )
+    {
+        this( input, new FrameTable(), new StackTrie() );
+    }
+
+    JsonThreadDumpFile( InputStream input, FrameTable frames, StackTrie stacks )
+    {
+        this.parser = new JsonThreadDumpParser( input, frames );
+        this.builder = new ThreadDumpBuilder( stacks );
+    }
+
+    /** @return <code>true</code> if the file starts like a JSON document, and not a text dump. */
+    public static boolean isJson( File file ) throws IOException
+    {
+        InputStream input = new BufferedInputStream( new FileInputStream( file ) );
+        try
+        {
+            for ( int c; ( c = input.read() ) != -1; )
+            {
+                if ( c > ' ' ) return c == '{';
+            }
+            return false;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    public boolean hasNext()
+    {
+        if ( next != null ) return true;
+        try
+        {
+            long allocated = ParseStatistics.allocated();
+            next = parser.next( builder ) ? builder.dump() : null;
+            if ( next != null ) ParseStatistics.dump( allocated );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+        return next != null;
+    }
+
+    public ThreadDump next()
+    {
+        if ( hasNext() )
+        {
+            try
+            {
+                return next;
+            }
+            finally
+            {
+                next = null;
+            }
+        }
+        else
+        {
+            throw new NoSuchElementException();
+        }
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException( "java.util.Iterator<ThreadDump>.remove()" );
+    }
+
+    public void close() throws IOException
+    {
+        parser.close();
+    }
+}
@@ -0,0 +1,586 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Parses the JSON thread dumps of <code>jcmd &lt;pid&gt; Thread.dump_to_file
+ * -format=json</code> into the events of a {@link ThreadDumpVisitor}, one
+ * thread at a time, without building a tree of the document:
+ *
+ * <pre>
+ * { "threadDump": { "processId": "1234", "time": "...", "runtimeVersion": "...",
+ *     "threadContainers": [ { "container": "&lt;root&gt;", "parent": null, "owner": null,
+ *         "threads": [ { "tid": "1", "name": "main", "stack": [ "java.base\/java.lang.Thread.sleep0(Native Method)", ... ] },
+ *         ... ], "threadCount": "1" }, ... ] } }
+ * </pre>
+ *
+ * Members are expected in the order the JVM writes them: the fields of the
+ * dump before its containers, the name of a container before its threads,
+ * and the stack of a thread before the monitors it owns. Members that are not
+ * known are skipped. Frames are interned from the unescaped bytes, so a frame
+ * that has been seen before costs no allocation.
+ *
+ * The monitors of the later JDKs that have them (<code>blockedOn</code>,
+ * <code>waitingOn</code>, <code>parkBlocker</code> and
+ * <code>monitorsOwned</code>) become the same stack elements as in text
+ * dumps. Dumps without a thread <code>state</code> get one from the monitors
+ * and the top frame of the thread.
+ */
+final class JsonThreadDumpParser implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final String ROOT = "<root>";
+    /** Methods that, in the top frames, imply the state of a thread. */
+    private static final String[] TIMED = { "parkNanos(", "parkUntil(", "Thread.sleep", "sleepNanos(" };
+    private static final String[] WAITING = { ".park(", "Object.wait" };
+
+    /**
+     * Receives the containers of a JSON dump, for visitors that group the
+     * threads by container. Each container is reported before its threads.
+     */
+    interface ContainerVisitor extends ThreadDumpVisitor
+    {
+        /**
+         * @param parent the name of the container this one is in, or
+         *            <code>null</code> for the root container.
+         */
+        void onContainer( String name, String parent );
+    }
+
+    private final InputStream input;
+    private final FrameTable frames;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position, limit;
+    /** The value of the last string or literal that was read. */
+    private byte[] scratch = new byte[256];
+    private int length;
+
+    // the thread that is being read
+    private MethodEntry[] stack = new MethodEntry[64];
+    private int depth;
+    private int[] ownedDepths = new int[8];
+    private LockMonitor[] owned = new LockMonitor[8];
+    private int ownedCount;
+    private WaitMonitor wait;
+    private boolean blocked;
+
+    JsonThreadDumpParser( InputStream input, FrameTable frames )
+    {
+        this.input = input;
+        this.frames = frames;
+    }
+
+    /**
+     * Parses the next dump of the input, a file may hold several documents
+     * one after the other.
+     *
+     * @return <code>false</code> if there are no more dumps.
+     */
+    boolean next( ThreadDumpVisitor visitor ) throws IOException
+    {
+        if ( peek() == -1 ) return false;
+        expect( '{' );
+        boolean found = false;
+        while ( nextMember() )
+        {
+            if ( is( "threadDump" ) )
+            {
+                dump( visitor );
+                found = true;
+            }
+            else skipValue();
+        }
+        if ( !found ) throw error( "not a JSON thread dump" );
+        return true;
+    }
+
+    private void dump( ThreadDumpVisitor visitor ) throws IOException
+    {
+        String time = "unknown", version = "", pid = null;
+        boolean started = false;
+        expect( '{' );
+        while ( nextMember() )
+        {
+            if ( is( "time" ) ) time = nullable( time );
+            else if ( is( "runtimeVersion" ) ) version = nullable( version );
+            else if ( is( "processId" ) ) pid = nullable( pid );
+            else if ( is( "threadContainers" ) && !started )
+            {
+                visitor.onDumpStart( new String[] { time,
+                        "Full thread dump " + version + ( pid != null ? " (pid " + pid + ")" : "" ) } );
+                started = true;
+                expect( '[' );
+                while ( nextElement() )
+                {
+                    container( visitor );
+                }
+            }
+            else skipValue();
+        }
+        if ( !started ) throw error( "no threadContainers" );
+        visitor.onDumpEnd();
+    }
+
+    private void container( ThreadDumpVisitor visitor ) throws IOException
+    {
+        String name = null, parent = null;
+        expect( '{' );
+        while ( nextMember() )
+        {
+            if ( is( "container" ) ) name = nullable( null );
+            else if ( is( "parent" ) ) parent = nullable( null );
+            else if ( is( "threads" ) )
+            {
+                if ( visitor instanceof ContainerVisitor )
+                {
+                    ( (ContainerVisitor) visitor ).onContainer( name, parent );
+                }
+                String location = name == null || name.equals( ROOT ) ? null : " in " + name;
+                expect( '[' );
+                while ( nextElement() )
+                {
+                    thread( visitor, location );
+                }
+            }
+            else skipValue();
+        }
+    }
+
+    private void thread( ThreadDumpVisitor visitor, String location ) throws IOException
+    {
+        long start = ParseStatistics.start();
+        String tid = null, name = "", state = null;
+        boolean virtual = false;
+        depth = 0;
+        ownedCount = 0;
+        wait = null;
+        blocked = false;
+        expect( '{' );
+        while ( nextMember() )
+        {
+            if ( is( "tid" ) ) tid = nullable( null );
+            else if ( is( "name" ) ) name = nullable( "" );
+            else if ( is( "state" ) ) state = nullable( null );
+            else if ( is( "virtual" ) ) virtual = literal() && is( "true" );
+            else if ( is( "blockedOn" ) ) blocked = waitFor( "waiting to lock " );
+            else if ( is( "waitingOn" ) ) waitFor( "waiting on " );
+            else if ( is( "parkBlocker" ) ) parkBlocker();
+            else if ( is( "stack" ) ) stack();
+            else if ( is( "monitorsOwned" ) ) monitorsOwned();
+            else skipValue();
+        }
+        ParseStatistics.thread();
+        StringBuilder info = new StringBuilder( name.length() + 16 ).append( '"' ).append( name ).append( '"' );
+        if ( tid != null ) info.append( " #" ).append( tid );
+        // the JDKs before 24 don't say which threads are virtual
+        if ( virtual || depth != 0 && stack[depth - 1].line().contains( "java.lang.VirtualThread.run(" ) )
+        {
+            info.append( " virtual" );
+        }
+        if ( location != null ) info.append( location );
+        visitor.onThread( info.toString(), state( state ), null );
+        for ( int i = 0, lock = 0; i < depth; i++ )
+        {
+            visitor.onFrame( stack[i] );
+            if ( i == 0 && wait != null ) visitor.onWait( wait );
+            for ( ; lock < ownedCount && ownedDepths[lock] == i; lock++ )
+            {
+                visitor.onLock( owned[lock] );
+            }
+        }
+        visitor.onThreadEnd();
+        ParseStatistics.threadParsed( start );
+    }
+
+    /**
+     * @return the state the dump gives, or else the state that the monitors
+     *         and top frame of the thread imply.
+     */
+    private Thread.State state( String state )
+    {
+        if ( state != null )
+        {
+            for ( Thread.State value : Thread.State.values() )
+            {
+                if ( value.name().equals( state ) ) return value;
+            }
+        }
+        if ( blocked ) return Thread.State.BLOCKED;
+        // the native park, sleep or wait is followed by the method that says if it is timed
+        for ( int i = 0; i < depth && i < 2; i++ )
+        {
+            if ( contains( stack[i].line(), TIMED ) ) return Thread.State.TIMED_WAITING;
+        }
+        for ( int i = 0; i < depth && i < 2; i++ )
+        {
+            if ( contains( stack[i].line(), WAITING ) ) return Thread.State.WAITING;
+        }
+        return wait != null ? Thread.State.WAITING : Thread.State.RUNNABLE;
+    }
+
+    private static boolean contains( String frame, String[] methods )
+    {
+        for ( String method : methods )
+        {
+            if ( frame.contains( method ) ) return true;
+        }
+        return false;
+    }
+
+    private void stack() throws IOException
+    {
+        expect( '[' );
+        while ( nextElement() )
+        {
+            if ( !literal() ) continue;
+            ParseStatistics.frame();
+            if ( depth == stack.length ) stack = Arrays.copyOf( stack, depth * 2 );
+            stack[depth++] = frames.intern( scratch, length );
+        }
+    }
+
+    /** <code>[ { "depth": 2, "locks": [ "java.lang.Object@1b6d3586", ... ] }, ... ]</code> */
+    private void monitorsOwned() throws IOException
+    {
+        expect( '[' );
+        while ( nextElement() )
+        {
+            int at = 0;
+            expect( '{' );
+            while ( nextMember() )
+            {
+                if ( is( "depth" ) ) at = literal() ? Integer.parseInt( text() ) : 0;
+                else if ( is( "locks" ) )
+                {
+                    expect( '[' );
+                    while ( nextElement() )
+                    {
+                        if ( !literal() ) continue;
+                        ParseStatistics.monitor();
+                        if ( ownedCount == owned.length )
+                        {
+                            owned = Arrays.copyOf( owned, ownedCount * 2 );
+                            ownedDepths = Arrays.copyOf( ownedDepths, ownedCount * 2 );
+                        }
+                        ownedDepths[ownedCount] = at;
+                        owned[ownedCount++] = new LockMonitor( monitor( "locked ", text() ) );
+                    }
+                }
+                else skipValue();
+            }
+        }
+        // the locks are emitted in the order of the frames they were taken in
+        for ( int i = 1; i < ownedCount; i++ )
+        {
+            for ( int j = i; j > 0 && ownedDepths[j - 1] > ownedDepths[j]; j-- )
+            {
+                int d = ownedDepths[j];
+                ownedDepths[j] = ownedDepths[j - 1];
+                ownedDepths[j - 1] = d;
+                LockMonitor lock = owned[j];
+                owned[j] = owned[j - 1];
+                owned[j - 1] = lock;
+            }
+        }
+    }
+
+    /** @return <code>true</code> if there was a monitor, and not null. */
+    private boolean waitFor( String prefix ) throws IOException
+    {
+        if ( !literal() ) return false;
+        ParseStatistics.monitor();
+        wait = new WaitMonitor( monitor( prefix, text() ) );
+        return true;
+    }
+
+    /** Either the blocker object itself, or <code>{ "object": "...", ... }</code>. */
+    private void parkBlocker() throws IOException
+    {
+        if ( peek() != '{' )
+        {
+            waitFor( "parking to wait for " );
+            return;
+        }
+        expect( '{' );
+        while ( nextMember() )
+        {
+            if ( is( "object" ) ) waitFor( "parking to wait for " );
+            else skipValue();
+        }
+    }
+
+    /**
+     * @param object the identity of an object in the dump,
+     *            <code>class@hash</code>.
+     * @return the line of the monitor of the object in a text dump.
+     */
+    private static String monitor( String prefix, String object )
+    {
+        int at = object.lastIndexOf( '@' );
+        if ( at == -1 ) return prefix + "<" + object + ">";
+        return prefix + "<0x" + object.substring( at + 1 ) + "> (a " + object.substring( 0, at ) + ")";
+    }
+
+    // tokens
+
+    /** @return the value of a string or literal, or <code>otherwise</code> if it is null. */
+    private String nullable( String otherwise ) throws IOException
+    {
+        return literal() ? text() : otherwise;
+    }
+
+    private String text()
+    {
+        return new String( scratch, 0, length, UTF8 );
+    }
+
+    private boolean is( String literal )
+    {
+        if ( length != literal.length() ) return false;
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( scratch[i] != literal.charAt( i ) ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string, number or literal into the scratch buffer.
+     *
+     * @return <code>false</code> if the value was <code>null</code>.
+     */
+    private boolean literal() throws IOException
+    {
+        int c = peek();
+        length = 0;
+        if ( c == '"' )
+        {
+            position++;
+            string();
+            return true;
+        }
+        if ( c == '{' || c == '[' ) throw error( "expected a value" );
+        while ( ( c = read() ) != -1 && c != ',' && c != '}' && c != ']' && c > ' ' )
+        {
+            append( c );
+        }
+        if ( c != -1 ) position--;
+        return !is( "null" );
+    }
+
+    /** Reads the rest of a string, after the opening quote, unescaped. */
+    private void string() throws IOException
+    {
+        for ( int c; ( c = read() ) != '"'; )
+        {
+            if ( c == -1 ) throw error( "unterminated string" );
+            if ( c != '\\' )
+            {
+                append( c );
+                continue;
+            }
+            switch ( c = read() )
+            {
+            case 'b': append( '\b' ); break;
+            case 'f': append( '\f' ); break;
+            case 'n': append( '\n' ); break;
+            case 'r': append( '\r' ); break;
+            case 't': append( '\t' ); break;
+            case 'u': codePoint( hex() ); break;
+            case -1: throw error( "unterminated string" );
+            default: append( c );
+            }
+        }
+    }
+
+    private int hex() throws IOException
+    {
+        int value = 0;
+        for ( int i = 0; i < 4; i++ )
+        {
+            int digit = Character.digit( read(), 16 );
+            if ( digit == -1 ) throw error( "bad \\u escape" );
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /** Appends an escaped character as UTF-8, combining surrogate pairs. */
+    private void codePoint( int c ) throws IOException
+    {
+        if ( Character.isHighSurrogate( (char) c ) && peekByte() == '\\' )
+        {
+            position++;
+            if ( read() != 'u' ) throw error( "bad surrogate pair" );
+            c = Character.toCodePoint( (char) c, (char) hex() );
+        }
+        if ( c < 0x80 ) append( c );
+        else if ( c < 0x800 )
+        {
+            append( 0xC0 | c >> 6 );
+            append( 0x80 | c & 0x3F );
+        }
+        else if ( c < 0x10000 )
+        {
+            append( 0xE0 | c >> 12 );
+            append( 0x80 | c >> 6 & 0x3F );
+            append( 0x80 | c & 0x3F );
+        }
+        else
+        {
+            append( 0xF0 | c >> 18 );
+            append( 0x80 | c >> 12 & 0x3F );
+            append( 0x80 | c >> 6 & 0x3F );
+            append( 0x80 | c & 0x3F );
+        }
+    }
+
+    private void append( int b )
+    {
+        if ( length == scratch.length ) scratch = Arrays.copyOf( scratch, length * 2 );
+        scratch[length++] = (byte) b;
+    }
+
+    /**
+     * Moves to the next member of an object, and reads its key.
+     *
+     * @return <code>false</code> at the end of the object.
+     */
+    private boolean nextMember() throws IOException
+    {
+        int c = peek();
+        if ( c == ',' )
+        {
+            position++;
+            c = peek();
+        }
+        if ( c == '}' )
+        {
+            position++;
+            return false;
+        }
+        expect( '"' );
+        length = 0;
+        string();
+        expect( ':' );
+        return true;
+    }
+
+    /**
+     * Moves to the next element of an array.
+     *
+     * @return <code>false</code> at the end of the array.
+     */
+    private boolean nextElement() throws IOException
+    {
+        int c = peek();
+        if ( c == ',' )
+        {
+            position++;
+            c = peek();
+        }
+        if ( c == ']' )
+        {
+            position++;
+            return false;
+        }
+        return true;
+    }
+
+    private void skipValue() throws IOException
+    {
+        int c = peek();
+        if ( c == '{' )
+        {
+            position++;
+            while ( nextMember() )
+            {
+                skipValue();
+            }
+        }
+        else if ( c == '[' )
+        {
+            position++;
+            while ( nextElement() )
+            {
+                skipValue();
+            }
+        }
+        else literal();
+    }
+
+    private void expect( char expected ) throws IOException
+    {
+        if ( peek() != expected ) throw error( "expected '" + expected + "'" );
+        position++;
+    }
+
+    /** @return the next byte that is not whitespace, without consuming it, or -1 at the end. */
+    private int peek() throws IOException
+    {
+        for ( int c; ( c = peekByte() ) != -1; position++ )
+        {
+            if ( c > ' ' ) return c;
+        }
+        return -1;
+    }
+
+    private int peekByte() throws IOException
+    {
+        if ( position == limit && !fill() ) return -1;
+        return buffer[position] & 0xFF;
+    }
+
+    private int read() throws IOException
+    {
+        if ( position == limit && !fill() ) return -1;
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException
+    {
+        int read = input.read( buffer );
+        if ( read <= 0 ) return false;
+        ParseStatistics.bytes( read );
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private IOException error( String message )
+    {
+        return new IOException( "Malformed JSON thread dump: " + message );
+    }
+
+    public void close() throws IOException
+    {
+        input.close();
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bipartite graph between the threads of a dump and the monitors they
+ * own or wait for. Threads and monitors are numbered densely, and the owner
+ * and waiter edges of each monitor are stored in compressed sparse row form:
+ * the edges of monitor <code>m</code> are at the indexes
+ * <code>start[m]</code> (inclusive) to <code>start[m + 1]</code>
+ * (exclusive) of the thread and frame arrays.
+ */
+final class LockGraph
+{
+    private final ThreadData[] threads;
+    private final String[] monitors;
+    private final int[] ownerStart, ownerThreads, ownerFrames;
+    private final int[] waiterStart, waiterThreads, waiterFrames;
+    private final boolean[] waiterBlocking;
+
+    private LockGraph( ThreadData[] threads, String[] monitors, Edges owners, Edges waiters )
+    {
+        this.threads = threads;
+        this.monitors = monitors;
+        this.ownerStart = owners.start( monitors.length );
+        this.ownerThreads = owners.sorted( owners.threads, ownerStart );
+        this.ownerFrames = owners.sorted( owners.frames, ownerStart );
+        this.waiterStart = waiters.start( monitors.length );
+        this.waiterThreads = waiters.sorted( waiters.threads, waiterStart );
+        this.waiterFrames = waiters.sorted( waiters.frames, waiterStart );
+        int[] blocking = waiters.sorted( waiters.blocking, waiterStart );
+        this.waiterBlocking = new boolean[blocking.length];
+        for ( int e = 0; e < blocking.length; e++ )
+        {
+            waiterBlocking[e] = blocking[e] != 0;
+        }
+    }
+
+    int threadCount()
+    {
+        return threads.length;
+    }
+
+    ThreadData thread( int thread )
+    {
+        return threads[thread];
+    }
+
+    int monitorCount()
+    {
+        return monitors.length;
+    }
+
+    String monitor( int monitor )
+    {
+        return monitors[monitor];
+    }
+
+    int ownerStart( int monitor )
+    {
+        return ownerStart[monitor];
+    }
+
+    int ownerEnd( int monitor )
+    {
+        return ownerStart[monitor + 1];
+    }
+
+    int ownerThread( int edge )
+    {
+        return ownerThreads[edge];
+    }
+
+    int ownerFrame( int edge )
+    {
+        return ownerFrames[edge];
+    }
+
+    int waiterStart( int monitor )
+    {
+        return waiterStart[monitor];
+    }
+
+    int waiterEnd( int monitor )
+    {
+        return waiterStart[monitor + 1];
+    }
+
+    int waiterThread( int edge )
+    {
+        return waiterThreads[edge];
+    }
+
+    int waiterFrame( int edge )
+    {
+        return waiterFrames[edge];
+    }
+
+    /**
+     * @return <code>true</code> if the thread of the edge is blocked on the
+     *         monitor, <code>false</code> if it is waiting to be notified.
+     */
+    boolean waiterBlocking( int edge )
+    {
+        return waiterBlocking[edge];
+    }
+
+    /**
+     * Prints one row per monitor, with a column per thread that is
+     * <code>o</code> if the thread owns the monitor and <code>x</code> if it
+     * waits for it.
+     */
+    void print( PrintStream out )
+    {
+        char[] row = new char[threads.length * 2];
+        Arrays.fill( row, ' ' );
+        for ( int m = 0; m < monitors.length; m++ )
+        {
+            for ( int e = waiterStart[m]; e < waiterStart[m + 1]; e++ )
+            {
+                row[waiterThreads[e] * 2] = 'x';
+            }
+            for ( int e = ownerStart[m]; e < ownerStart[m + 1]; e++ )
+            {
+                row[ownerThreads[e] * 2] = 'o';
+            }
+            out.print( monitors[m] + ": " );
+            out.println( row );
+            for ( int e = waiterStart[m]; e < waiterStart[m + 1]; e++ )
+            {
+                row[waiterThreads[e] * 2] = ' ';
+            }
+            for ( int e = ownerStart[m]; e < ownerStart[m + 1]; e++ )
+            {
+                row[ownerThreads[e] * 2] = ' ';
+            }
+        }
+    }
+
+    /**
+     * Writes the edges between the included threads and the monitors they use,
+     * and between those monitors and the other threads that use them.
+     *
+     * @param nodes the thread whose node stands for each thread, when the graph
+     *            is pruned, or <code>null</code>.
+     * @return which threads were not included, but have edges.
+     */
+    boolean[] graphviz( GraphvizWriter gv, boolean[] included, int[] nodes ) throws IOException
+    {
+        boolean[] extra = new boolean[threads.length];
+        for ( int m = 0; m < monitors.length; m++ )
+        {
+            if ( includesAny( ownerStart, ownerThreads, m, included, nodes )
+                 || includesAny( waiterStart, waiterThreads, m, included, nodes ) )
+            {
+                graphviz( gv, m, ownerStart, ownerThreads, ownerFrames, "green", included, nodes, extra );
+                graphviz( gv, m, waiterStart, waiterThreads, waiterFrames, "red", included, nodes, extra );
+            }
+        }
+        return extra;
+    }
+
+    private static boolean includesAny( int[] start, int[] edgeThreads, int monitor, boolean[] included,
+            int[] nodes )
+    {
+        for ( int e = start[monitor]; e < start[monitor + 1]; e++ )
+        {
+            int thread = edgeThreads[e];
+            if ( included[nodes == null ? thread : nodes[thread]] ) return true;
+        }
+        return false;
+    }
+
+    private void graphviz( GraphvizWriter gv, int monitor, int[] start, int[] edgeThreads, int[] edgeFrames,
+            String color, boolean[] included, int[] nodes, boolean[] extra ) throws IOException
+    {
+        for ( int e = start[monitor]; e < start[monitor + 1]; e++ )
+        {
+            int thread = edgeThreads[e];
+            // the threads of a pruned node share the edge of the node
+            if ( nodes != null && nodes[thread] != thread ) continue;
+            gv.append( "  " ).append( threads[thread].id ).append( ":" ).port( edgeFrames[e] ).append( " -> \"" )
+                    .append( monitors[monitor] ).append( "\" [color=" ).append( color ).append( "]\n" );
+            if ( !included[thread] ) extra[thread] = true;
+        }
+    }
+
+    void snapshot( SnapshotWriter out ) throws IOException
+    {
+        out.writeVarint( monitors.length );
+        for ( int m = 0; m < monitors.length; m++ )
+        {
+            out.writeString( monitors[m] );
+            snapshot( out, ownerStart, ownerThreads, ownerFrames, null, m );
+            snapshot( out, waiterStart, waiterThreads, waiterFrames, waiterBlocking, m );
+        }
+    }
+
+    /** Writes the edges as (thread, frame) pairs, with the blocking flag of waiters in the low bit of the frame. */
+    private static void snapshot( SnapshotWriter out, int[] start, int[] edgeThreads, int[] edgeFrames,
+            boolean[] blocking, int monitor ) throws IOException
+    {
+        out.writeVarint( start[monitor + 1] - start[monitor] );
+        for ( int e = start[monitor]; e < start[monitor + 1]; e++ )
+        {
+            out.writeVarint( edgeThreads[e] );
+            out.writeVarint( blocking == null ? edgeFrames[e] : ( edgeFrames[e] << 1 ) | ( blocking[e] ? 1 : 0 ) );
+        }
+    }
+
+    /**
+     * Collects the edges of a lock graph in any order.
+     */
+    static final class Builder
+    {
+        private final Map<String, Integer> monitors = new HashMap<String, Integer>();
+        private final List<String> ids = new ArrayList<String>();
+        private final Edges owners = new Edges(), waiters = new Edges();
+
+        void owner( String monitor, int thread, int frame )
+        {
+            owners.add( monitor( monitor ), thread, frame, false );
+        }
+
+        void waiter( String monitor, int thread, int frame, boolean blocking )
+        {
+            waiters.add( monitor( monitor ), thread, frame, blocking );
+        }
+
+        private int monitor( String id )
+        {
+            Integer monitor = monitors.get( id );
+            if ( monitor == null )
+            {
+                monitors.put( id, monitor = ids.size() );
+                ids.add( id );
+            }
+            return monitor;
+        }
+
+        LockGraph build( ThreadData[] threads )
+        {
+            return new LockGraph( threads, ids.toArray( new String[ids.size()] ), owners, waiters );
+        }
+    }
+
+    private static final class Edges
+    {
+        private int size;
+        private int[] monitors = new int[16], threads = new int[16], frames = new int[16], blocking = new int[16];
+
+        void add( int monitor, int thread, int frame, boolean blocks )
+        {
+            if ( size == monitors.length )
+            {
+                monitors = Arrays.copyOf( monitors, size * 2 );
+                threads = Arrays.copyOf( threads, size * 2 );
+                frames = Arrays.copyOf( frames, size * 2 );
+                blocking = Arrays.copyOf( blocking, size * 2 );
+            }
+            monitors[size] = monitor;
+            threads[size] = thread;
+            frames[size] = frame;
+            blocking[size++] = blocks ? 1 : 0;
+        }
+
+        /** Counts the edges per monitor, into the offsets of the rows. */
+        int[] start( int monitorCount )
+        {
+            int[] start = new int[monitorCount + 1];
+            for ( int e = 0; e < size; e++ )
+            {
+                start[monitors[e] + 1]++;
+            }
+            for ( int m = 0; m < monitorCount; m++ )
+            {
+                start[m + 1] += start[m];
+            }
+            return start;
+        }
+
+        /** Places the values of the edges in their rows, keeping the order within each row. */
+        int[] sorted( int[] values, int[] start )
+        {
+            int[] next = Arrays.copyOf( start, start.length - 1 );
+            int[] result = new int[size];
+            for ( int e = 0; e < size; e++ )
+            {
+                result[next[monitors[e]]++] = values[e];
+            }
+            return result;
+        }
+    }
+}
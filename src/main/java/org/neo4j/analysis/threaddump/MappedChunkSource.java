@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the chunks of a byte range of a file by memory mapping it. The range
+ * is mapped in windows, so that files larger than what a single mapping can
+ * hold can be read.
+ */
+final class MappedChunkSource implements ChunkSource
+{
+    private static final long WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private long windowSize = WINDOW_SIZE;
+    private long windowStart, windowEnd;
+    private ChunkScanner scanner;
+
+    /**
+     * @param start the start of the range, must be at the beginning of a
+     *            chunk.
+     */
+    MappedChunkSource( FileChannel channel, long start, long end )
+    {
+        this.channel = channel;
+        this.windowStart = this.windowEnd = start;
+        this.end = end;
+    }
+
+    public boolean next( ByteChunk chunk ) throws IOException
+    {
+        for ( ;; )
+        {
+            if ( scanner != null && scanner.next( chunk ) )
+            {
+                if ( chunk.isTerminated() || windowEnd == end ) return true;
+                // the chunk continues past the end of this window, map it again
+                long chunkStart = windowStart + chunk.start();
+                if ( chunkStart == windowStart )
+                {
+                    if ( windowSize >= Integer.MAX_VALUE ) return true;
+                    windowSize *= 2;
+                }
+                map( chunkStart );
+            }
+            else if ( windowEnd < end )
+            {
+                map( windowEnd );
+            }
+            else
+            {
+                return false;
+            }
+        }
+    }
+
+    /** @return the position in the file of a chunk that was just read from this source. */
+    long offset( ByteChunk chunk )
+    {
+        return windowStart + chunk.start();
+    }
+
+    private void map( long start ) throws IOException
+    {
+        long length = Math.min( windowSize, end - start );
+        if ( length > Integer.MAX_VALUE ) length = Integer.MAX_VALUE;
+        MappedByteBuffer window = channel.map( FileChannel.MapMode.READ_ONLY, start, length );
+        windowStart = start;
+        windowEnd = start + length;
+        scanner = new ChunkScanner( window );
+    }
+}
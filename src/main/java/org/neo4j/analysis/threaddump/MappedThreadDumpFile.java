@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads thread dumps from a memory mapped file. The stacks of the threads are
+ * only decoded from the mapped bytes when they are first used, so the file
+ * must not change while the dumps read from it are in use.
+ */
+public class MappedThreadDumpFile implements Iterator<ThreadDump>, Closeable
+{
+    private final FileChannel channel;
+    private final ThreadDumpParser parser;
+    private final ThreadDumpBuilder builder;
+    private ThreadDump next;
+
+    public MappedThreadDumpFile( File file ) throws IOException
+    {
+        this( new RandomAccessFile( file, "r" ).getChannel() );
+    }
+
+    public MappedThreadDumpFile( FileChannel channel ) throws IOException
+    {
+        this( channel, 0, channel.size(), new FrameTable(), new StackTrie() );
+    }
+
+    /**
+     * Reads the dumps in the given byte range of the channel. The range must
+     * start at the beginning of a chunk. Frames and stacks are interned in the
+     * given table and trie, which may be shared with readers of other ranges.
+     */
+    MappedThreadDumpFile( FileChannel channel, long start, long end, FrameTable frames, StackTrie stacks )
+    {
+        this.channel = channel;
+        this.parser = new ThreadDumpParser( new MappedChunkSource( channel, start, end ), frames, stacks );
+        this.builder = new ThreadDumpBuilder( stacks );
+    }
+
+    public boolean hasNext()
+    {
+        if ( next != null ) return true;
+        try
+        {
+            long allocated = ParseStatistics.allocated();
+            next = parser.next( builder ) ? builder.dump() : null;
+            if ( next != null ) ParseStatistics.dump( allocated );
+        }
+        catch ( IOException e )
+        {
+            next = null;
+        }
+        return next != null;
+    }
+
+    public ThreadDump next()
+    {
+        if ( hasNext() )
+        {
+            try
+            {
+                return next;
+            }
+            finally
+            {
+                next = null;
+            }
+        }
+        else
+        {
+            throw new NoSuchElementException();
+        }
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException( "java.util.Iterator<ThreadDump>.remove()" );
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Aggregates dumps in tasks of a batch of dumps each on a fork-join pool,
+ * into partial results that are merged in the order of the batches. The
+ * number of batches that are queued is bounded, so that the dumps don't all
+ * have to be held in memory.
+ *
+ * @param <R> the type of the result.
+ */
+abstract class ParallelAggregation<R>
+{
+    private static final int BATCH_SIZE = 16;
+
+    /** @return a new, empty, result. */
+    abstract R create();
+
+    abstract void add( R result, ThreadDump dump );
+
+    /** Adds the counts of <code>partial</code> to <code>result</code>. */
+    abstract void merge( R result, R partial );
+
+    final R aggregate( Iterable<ThreadDump> dumps, ForkJoinPool pool )
+    {
+        R result = create();
+        Deque<ForkJoinTask<R>> pending = new ArrayDeque<ForkJoinTask<R>>();
+        List<ThreadDump> batch = new ArrayList<ThreadDump>( BATCH_SIZE );
+        for ( ThreadDump dump : dumps )
+        {
+            batch.add( dump );
+            if ( batch.size() < BATCH_SIZE ) continue;
+            pending.add( pool.submit( task( batch ) ) );
+            batch = new ArrayList<ThreadDump>( BATCH_SIZE );
+            // bound the number of dumps held in memory
+            while ( pending.size() > pool.getParallelism() * 2 )
+            {
+                merge( result, pending.poll().join() );
+            }
+        }
+        if ( !batch.isEmpty() ) pending.add( pool.submit( task( batch ) ) );
+        while ( !pending.isEmpty() )
+        {
+            merge( result, pending.poll().join() );
+        }
+        return result;
+    }
+
+    private Callable<R> task( final List<ThreadDump> batch )
+    {
+        return new Callable<R>()
+        {
+            public R call()
+            {
+                R partial = create();
+                for ( ThreadDump dump : batch )
+                {
+                    add( partial, dump );
+                }
+                return partial;
+            }
+        };
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads the thread dumps of a file in parallel. The file is first scanned (in
+ * parallel) for the header chunks that start each dump, the regions between
+ * them are then parsed as separate tasks on a fork-join pool. The dumps are
+ * returned in file order, with a bounded number of regions parsed ahead.
+ *
+ * The tasks decode the stacks and build the lock graph of each dump, which
+ * the mapped reader would otherwise leave to the first use, on the thread
+ * that consumes the dumps. That work is done even if the consumer doesn't
+ * need it, and the regions parsed ahead hold their decoded dumps.
+ */
+public class ParallelThreadDumpFile implements Iterator<ThreadDump>, Closeable
+{
+    private static final String HEADER = "Full thread dump";
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int OVERLAP = 64 * 1024;
+    private static final long TASK_SIZE = 4 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final FrameTable frames = new FrameTable();
+    private final StackTrie stacks = new StackTrie();
+    private final ForkJoinPool pool;
+    private final long[] tasks;
+    private final int readAhead;
+    private int nextTask;
+    private final Deque<ForkJoinTask<List<ThreadDump>>> pending = new ArrayDeque<ForkJoinTask<List<ThreadDump>>>();
+    private Iterator<ThreadDump> current = Collections.<ThreadDump>emptyList().iterator();
+
+    public ParallelThreadDumpFile( File file ) throws IOException
+    {
+        this( new RandomAccessFile( file, "r" ).getChannel(), ForkJoinPool.commonPool() );
+    }
+
+    public ParallelThreadDumpFile( FileChannel channel, ForkJoinPool pool ) throws IOException
+    {
+        this.channel = channel;
+        this.pool = pool;
+        this.tasks = tasks( regions( channel, pool ) );
+        this.readAhead = pool.getParallelism() * 2;
+    }
+
+    /**
+     * Groups consecutive dump regions into tasks of at least
+     * {@link #TASK_SIZE} bytes, so that small dumps don't drown in task
+     * overhead.
+     */
+    private static long[] tasks( long[] regions )
+    {
+        long[] tasks = new long[regions.length];
+        int count = 0;
+        tasks[count++] = regions[0];
+        for ( int i = 1; i < regions.length - 1; i++ )
+        {
+            if ( regions[i] - tasks[count - 1] >= TASK_SIZE ) tasks[count++] = regions[i];
+        }
+        tasks[count++] = regions[regions.length - 1];
+        long[] result = new long[count];
+        System.arraycopy( tasks, 0, result, 0, count );
+        return result;
+    }
+
+    /**
+     * @return the start offsets of all dump regions, followed by the size of
+     *         the file.
+     */
+    private static long[] regions( final FileChannel channel, ForkJoinPool pool ) throws IOException
+    {
+        final long size = channel.size();
+        List<ForkJoinTask<List<Long>>> segments = new ArrayList<ForkJoinTask<List<Long>>>();
+        for ( long start = 0; start < size; start += SEGMENT_SIZE )
+        {
+            final long from = start, to = Math.min( size, start + SEGMENT_SIZE );
+            segments.add( pool.submit( new Callable<List<Long>>()
+            {
+                public List<Long> call() throws IOException
+                {
+                    return findHeaders( channel, size, from, to );
+                }
+            } ) );
+        }
+        List<Long> regions = new ArrayList<Long>();
+        regions.add( 0L );
+        for ( ForkJoinTask<List<Long>> segment : segments )
+        {
+            for ( Long header : segment.join() )
+            {
+                if ( header != 0 ) regions.add( header );
+            }
+        }
+        regions.add( size );
+        long[] result = new long[regions.size()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = regions.get( i );
+        }
+        return result;
+    }
+
+    /**
+     * Finds the header chunks, exactly two lines where the second one starts
+     * with "Full thread dump", that start in the given range of the file.
+     */
+    private static List<Long> findHeaders( FileChannel channel, long size, long from, long to ) throws IOException
+    {
+        long base = Math.max( 0, from - OVERLAP );
+        ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, base,
+                Math.min( size, to + OVERLAP ) - base );
+        boolean atEnd = base + buffer.limit() == size;
+        List<Long> headers = new ArrayList<Long>();
+        int limit = buffer.limit(), end = (int) ( to - base );
+        int pos = from == 0 ? 0 : indexOf( buffer, (int) ( from - base ) - 1, '\n' ) + 1;
+        // the date line of a header found on the first line would start in the previous segment
+        int previous = -1;
+        while ( pos < limit && previous < end )
+        {
+            int lineEnd = indexOf( buffer, pos, '\n' );
+            if ( previous != -1 && startsWith( buffer, pos, lineEnd, HEADER )
+                 && !isBlank( buffer, previous, pos - 1 ) && isBlankBefore( buffer, base, previous )
+                 && isBlankAfter( buffer, atEnd, lineEnd + 1 ) )
+            {
+                headers.add( base + previous );
+            }
+            previous = pos;
+            pos = lineEnd + 1;
+        }
+        return headers;
+    }
+
+    private static boolean isBlankBefore( ByteBuffer buffer, long base, int lineStart )
+    {
+        if ( lineStart == 0 ) return base == 0;
+        int start = lineStart - 1;
+        while ( start > 0 && buffer.get( start - 1 ) != '\n' )
+        {
+            start--;
+        }
+        return ( start > 0 || base == 0 ) && isBlank( buffer, start, lineStart - 1 );
+    }
+
+    private static boolean isBlankAfter( ByteBuffer buffer, boolean atEnd, int lineStart )
+    {
+        int lineEnd = indexOf( buffer, lineStart, '\n' );
+        if ( lineEnd >= buffer.limit() && !atEnd ) return false;
+        return isBlank( buffer, lineStart, lineEnd );
+    }
+
+    private static int indexOf( ByteBuffer buffer, int from, char b )
+    {
+        int limit = buffer.limit();
+        while ( from < limit && buffer.get( from ) != b )
+        {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isBlank( ByteBuffer buffer, int from, int to )
+    {
+        for ( int pos = from; pos < to; pos++ )
+        {
+            if ( ( buffer.get( pos ) & 0xFF ) > ' ' ) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith( ByteBuffer buffer, int from, int to, String prefix )
+    {
+        while ( from < to && ( buffer.get( from ) & 0xFF ) <= ' ' )
+        {
+            from++;
+        }
+        if ( to - from < prefix.length() ) return false;
+        for ( int i = 0; i < prefix.length(); i++ )
+        {
+            if ( buffer.get( from + i ) != prefix.charAt( i ) ) return false;
+        }
+        return true;
+    }
+
+    private void submit()
+    {
+        while ( pending.size() < readAhead && nextTask < tasks.length - 1 )
+        {
+            final long start = tasks[nextTask], end = tasks[++nextTask];
+            pending.add( pool.submit( new Callable<List<ThreadDump>>()
+            {
+                public List<ThreadDump> call()
+                {
+                    List<ThreadDump> dumps = new ArrayList<ThreadDump>();
+                    Iterator<ThreadDump> region = new MappedThreadDumpFile( channel, start, end, frames, stacks );
+                    while ( region.hasNext() )
+                    {
+                        ThreadDump dump = region.next();
+                        dump.locks(); // decodes the stacks as well
+                        dumps.add( dump );
+                    }
+                    return dumps;
+                }
+            } ) );
+        }
+    }
+
+    public boolean hasNext()
+    {
+        while ( !current.hasNext() )
+        {
+            submit();
+            ForkJoinTask<List<ThreadDump>> task = pending.poll();
+            if ( task == null ) return false;
+            current = task.join().iterator();
+        }
+        return true;
+    }
+
+    public ThreadDump next()
+    {
+        if ( !hasNext() ) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException( "java.util.Iterator<ThreadDump>.remove()" );
+    }
+
+    public void close() throws IOException
+    {
+        for ( ForkJoinTask<List<ThreadDump>> task : pending )
+        {
+            task.cancel( false );
+        }
+        pending.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of the parsing pipeline: reading chunks, parsing
+ * threads and their stack elements, decoding the stacks that are left
+ * undecoded until they are used, and building dumps. Collecting is off by
+ * default, and then costs a read of a flag at each point, and nothing is
+ * allocated.
+ *
+ * The frames, monitors and unparseable lines of a lazily decoded stack are
+ * recorded when it is decoded, which may be on another thread than the one
+ * that parsed the dump, or never, if the stack is not used.
+ *
+ * The statistics are global, they are exposed as an MBean by
+ * {@link #register()}.
+ */
+public final class ParseStatistics implements ParseStatisticsMBean
+{
+    private static final ParseStatistics INSTANCE = new ParseStatistics();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean enabled;
+    private static final LongAdder bytes = new LongAdder(), chunks = new LongAdder(), skipped = new LongAdder(),
+            unparseable = new LongAdder(), threads = new LongAdder(), frames = new LongAdder(),
+            monitors = new LongAdder(), dumps = new LongAdder(), allocated = new LongAdder(),
+            stacks = new LongAdder(), chunkingNanos = new LongAdder(), threadNanos = new LongAdder(),
+            stackNanos = new LongAdder(), dumpNanos = new LongAdder();
+
+    private ParseStatistics()
+    {
+    }
+
+    /** Registers the statistics MBean with the platform MBean server. */
+    public static void register() throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName( "org.neo4j.analysis:type=ParseStatistics" );
+        if ( !server.isRegistered( name ) ) server.registerMBean( INSTANCE, name );
+    }
+
+    public static void enable( boolean enable )
+    {
+        enabled = enable;
+    }
+
+    // recording, called from the parsers
+
+    static void bytes( long count )
+    {
+        if ( enabled ) bytes.add( count );
+    }
+
+    static void chunk()
+    {
+        if ( enabled ) chunks.increment();
+    }
+
+    static void skipped()
+    {
+        if ( enabled ) skipped.increment();
+    }
+
+    static void unparseable()
+    {
+        if ( enabled ) unparseable.increment();
+    }
+
+    static void thread()
+    {
+        if ( enabled ) threads.increment();
+    }
+
+    static void frame()
+    {
+        if ( enabled ) frames.increment();
+    }
+
+    static void monitor()
+    {
+        if ( enabled ) monitors.increment();
+    }
+
+    /** @return the start time of a stage, to pass to the method that records its end. */
+    static long start()
+    {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void chunking( long start )
+    {
+        if ( enabled && start != 0 ) chunkingNanos.add( System.nanoTime() - start );
+    }
+
+    static void threadParsed( long start )
+    {
+        if ( enabled && start != 0 ) threadNanos.add( System.nanoTime() - start );
+    }
+
+    /** Records the lazy decoding of a stack. */
+    static void stackDecoded( long start )
+    {
+        if ( !enabled ) return;
+        stacks.increment();
+        if ( start != 0 ) stackNanos.add( System.nanoTime() - start );
+    }
+
+    static void dumpConstructed( long start )
+    {
+        if ( enabled && start != 0 ) dumpNanos.add( System.nanoTime() - start );
+    }
+
+    /** @return the bytes allocated so far by the current thread, to pass to {@link #dump(long)}. */
+    static long allocated()
+    {
+        if ( !enabled || !( THREADS instanceof com.sun.management.ThreadMXBean ) ) return -1;
+        return ( (com.sun.management.ThreadMXBean) THREADS ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    /** Records a dump that was read by the current thread. */
+    static void dump( long allocatedBefore )
+    {
+        if ( !enabled ) return;
+        dumps.increment();
+        long allocatedAfter = allocated();
+        if ( allocatedBefore >= 0 && allocatedAfter >= 0 ) allocated.add( allocatedAfter - allocatedBefore );
+    }
+
+    public static void print( PrintStream out )
+    {
+        ParseStatistics stats = INSTANCE;
+        out.println( "Read " + stats.getBytesRead() + " bytes in " + stats.getChunks() + " chunks ("
+                     + stats.getSkippedChunks() + " skipped, " + stats.getUnparseableChunks() + " unparseable)" );
+        out.println( "Parsed " + stats.getDumps() + " dumps, " + stats.getThreads() + " threads, "
+                     + stats.getFrames() + " frames, " + stats.getMonitors() + " monitors" );
+        out.println( "Time: " + stats.getChunkingMillis() + " ms reading chunks, " + stats.getThreadParsingMillis()
+                     + " ms parsing threads, " + stats.getStackDecodingMillis() + " ms decoding "
+                     + stats.getDecodedStacks() + " lazy stacks, " + stats.getDumpConstructionMillis()
+                     + " ms building dumps" );
+        out.println( "Allocated " + stats.getAllocatedBytesPerDump() + " bytes per dump" );
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled( boolean enabled )
+    {
+        enable( enabled );
+    }
+
+    public void reset()
+    {
+        for ( LongAdder counter : new LongAdder[] { bytes, chunks, skipped, unparseable, threads, frames, monitors,
+                dumps, allocated, stacks, chunkingNanos, threadNanos, stackNanos, dumpNanos } )
+        {
+            counter.reset();
+        }
+    }
+
+    public long getBytesRead()
+    {
+        return bytes.sum();
+    }
+
+    public long getChunks()
+    {
+        return chunks.sum();
+    }
+
+    public long getSkippedChunks()
+    {
+        return skipped.sum();
+    }
+
+    public long getUnparseableChunks()
+    {
+        return unparseable.sum();
+    }
+
+    public long getThreads()
+    {
+        return threads.sum();
+    }
+
+    public long getFrames()
+    {
+        return frames.sum();
+    }
+
+    public long getMonitors()
+    {
+        return monitors.sum();
+    }
+
+    public long getDumps()
+    {
+        return dumps.sum();
+    }
+
+    public long getDecodedStacks()
+    {
+        return stacks.sum();
+    }
+
+    public long getChunkingMillis()
+    {
+        return chunkingNanos.sum() / 1000000;
+    }
+
+    public long getThreadParsingMillis()
+    {
+        return threadNanos.sum() / 1000000;
+    }
+
+    public long getStackDecodingMillis()
+    {
+        return stackNanos.sum() / 1000000;
+    }
+
+    public long getDumpConstructionMillis()
+    {
+        return dumpNanos.sum() / 1000000;
+    }
+
+    public long getAllocatedBytesPerDump()
+    {
+        long dumps = getDumps();
+        return dumps == 0 ? 0 : allocated.sum() / dumps;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The number of threads of each pool in each state, over the dumps of a log,
+ * written as CSV with one row per pool and dump. A pool is saturated in a
+ * dump when all of its threads are <code>BLOCKED</code> or
+ * <code>WAITING</code>, this is found from the counts of the dump, so each
+ * thread is only visited once.
+ *
+ * Only the names and states of the threads are used, so with a
+ * {@link MappedThreadDumpFile} no stacks are ever decoded.
+ */
+public class PoolStates
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+    private static final int SLOTS = STATES.length + 1;
+
+    private final ThreadPools pools;
+    private final Writer csv;
+    /** Counts of the current dump, by pool and state, threads without a state last. */
+    private int[] counts = new int[16 * SLOTS];
+    private int[] seen = new int[16];
+    private long[] dumps = new long[16], saturated = new long[16];
+
+    public PoolStates( ThreadPools pools, Writer csv ) throws IOException
+    {
+        this.pools = pools;
+        this.csv = csv;
+        csv.write( "date,pool,threads" );
+        for ( Thread.State state : STATES )
+        {
+            csv.write( "," + state );
+        }
+        csv.write( ",NONE,saturated\n" );
+    }
+
+    public void add( ThreadDump dump ) throws IOException
+    {
+        int touched = 0;
+        for ( ThreadData thread : dump )
+        {
+            int pool = pools.pool( thread );
+            if ( ( pool + 1 ) * SLOTS > counts.length ) counts = Arrays.copyOf( counts, counts.length * 2 );
+            if ( touched == seen.length ) seen = Arrays.copyOf( seen, touched * 2 );
+            int base = pool * SLOTS;
+            if ( isEmpty( base ) ) seen[touched++] = pool;
+            counts[base + ( thread.state() == null ? STATES.length : thread.state().ordinal() )]++;
+        }
+        Arrays.sort( seen, 0, touched );
+        String date = field( dump.date() );
+        for ( int i = 0; i < touched; i++ )
+        {
+            int pool = seen[i], base = pool * SLOTS, threads = 0;
+            for ( int s = 0; s < SLOTS; s++ )
+            {
+                threads += counts[base + s];
+            }
+            boolean full = counts[base + Thread.State.BLOCKED.ordinal()]
+                           + counts[base + Thread.State.WAITING.ordinal()] == threads;
+            if ( pool >= dumps.length )
+            {
+                dumps = Arrays.copyOf( dumps, Math.max( pool + 1, dumps.length * 2 ) );
+                saturated = Arrays.copyOf( saturated, dumps.length );
+            }
+            dumps[pool]++;
+            if ( full ) saturated[pool]++;
+            csv.write( date );
+            csv.write( ',' );
+            csv.write( field( pools.name( pool ) ) );
+            csv.write( ',' );
+            csv.write( Integer.toString( threads ) );
+            for ( int s = 0; s < SLOTS; s++ )
+            {
+                csv.write( ',' );
+                csv.write( Integer.toString( counts[base + s] ) );
+                counts[base + s] = 0;
+            }
+            csv.write( full ? ",true\n" : ",false\n" );
+        }
+    }
+
+    private boolean isEmpty( int base )
+    {
+        for ( int s = 0; s < SLOTS; s++ )
+        {
+            if ( counts[base + s] != 0 ) return false;
+        }
+        return true;
+    }
+
+    private static String field( String value )
+    {
+        if ( value.indexOf( ',' ) < 0 && value.indexOf( '"' ) < 0 && value.indexOf( '\n' ) < 0 ) return value;
+        return '"' + value.replace( "\"", "\"\"" ) + '"';
+    }
+
+    /** Prints the pools that were saturated in any dump, and in how many of the dumps they were in. */
+    public void printSaturated( PrintStream out )
+    {
+        for ( int pool = 0; pool < pools.size() && pool < dumps.length; pool++ )
+        {
+            if ( saturated[pool] == 0 ) continue;
+            out.println( pools.name( pool ) + ": saturated in " + saturated[pool] + " of " + dumps[pool] + " dumps" );
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        ThreadPools pools = new ThreadPools();
+        File output = null;
+        int i = 0;
+        for ( ; i < args.length && args[i].startsWith( "--" ); i++ )
+        {
+            if ( "--rule".equals( args[i] ) && i + 2 < args.length )
+            {
+                pools.rule( args[++i], args[++i] );
+            }
+            else if ( "--out".equals( args[i] ) && i + 1 < args.length ) output = new File( args[++i] );
+            else break;
+        }
+        if ( i == args.length )
+        {
+            System.err.println( "usage: PoolStates [--rule <regex> <pool name>]... [--out file.csv] <dump file>..." );
+            System.exit( 1 );
+        }
+        pools.defaultRules();
+        Writer csv = new BufferedWriter( new OutputStreamWriter( output == null ? System.out
+                : new FileOutputStream( output ), Charset.forName( "UTF-8" ) ), 1 << 16 );
+        try
+        {
+            PoolStates states = new PoolStates( pools, csv );
+            for ( ; i < args.length; i++ )
+            {
+                MappedThreadDumpFile dumps = new MappedThreadDumpFile( new File( args[i] ) );
+                try
+                {
+                    while ( dumps.hasNext() )
+                    {
+                        states.add( dumps.next() );
+                    }
+                }
+                finally
+                {
+                    dumps.close();
+                }
+            }
+            csv.flush();
+            states.printSaturated( System.err );
+        }
+        finally
+        {
+            csv.close();
+        }
+    }
+}
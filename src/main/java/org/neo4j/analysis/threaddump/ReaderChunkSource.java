@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the chunks of a character stream, line by line. Each chunk is encoded
+ * into a buffer of its own, so the chunks stay valid after the next one is
+ * read and the stacks of the threads can be decoded lazily.
+ */
+final class ReaderChunkSource implements ChunkSource
+{
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final BufferedReader input;
+    private final StringBuilder text = new StringBuilder();
+
+    ReaderChunkSource( BufferedReader input )
+    {
+        this.input = input;
+    }
+
+    public boolean next( ByteChunk chunk ) throws IOException
+    {
+        text.setLength( 0 );
+        for ( String line; ( line = input.readLine() ) != null; )
+        {
+            if ( line.trim().length() != 0 )
+            {
+                text.append( line ).append( '\n' );
+            }
+            else if ( text.length() != 0 )
+            {
+                break;
+            }
+        }
+        if ( text.length() == 0 ) return false;
+        return new ChunkScanner( ByteBuffer.wrap( text.toString().getBytes( CHARSET ) ) ).next( chunk );
+    }
+}
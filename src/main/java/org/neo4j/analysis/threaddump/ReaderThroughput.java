@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Compares the throughput, in MB/s, of {@link ThreadDumpFile},
+ * {@link MappedThreadDumpFile} and {@link ParallelThreadDumpFile} on the
+ * given files.
+ */
+public class ReaderThroughput
+{
+    private static final int ROUNDS = 5;
+
+    private enum Reader
+    {
+        LINES
+        {
+            @Override
+            Iterator<ThreadDump> open( File file ) throws IOException
+            {
+                return new ThreadDumpFile( file );
+            }
+        },
+        MAPPED
+        {
+            @Override
+            Iterator<ThreadDump> open( File file ) throws IOException
+            {
+                return new MappedThreadDumpFile( file );
+            }
+        },
+        PARALLEL
+        {
+            @Override
+            Iterator<ThreadDump> open( File file ) throws IOException
+            {
+                return new ParallelThreadDumpFile( file );
+            }
+        };
+
+        abstract Iterator<ThreadDump> open( File file ) throws IOException;
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        for ( String filename : args )
+        {
+            File file = new File( filename );
+            double megabytes = file.length() / ( 1024.0 * 1024.0 );
+            for ( Reader reader : Reader.values() )
+            {
+                read( reader, file ); // warmup
+                long best = Long.MAX_VALUE;
+                int dumps = 0;
+                for ( int round = 0; round < ROUNDS; round++ )
+                {
+                    long start = System.nanoTime();
+                    dumps = read( reader, file );
+                    best = Math.min( best, System.nanoTime() - start );
+                }
+                System.out.printf( "%s %s: %d dumps, %.1f MB in %d ms, %.1f MB/s%n", filename, reader, dumps,
+                        megabytes, best / 1000000, megabytes / ( best / 1e9 ) );
+            }
+        }
+    }
+
+    private static int read( Reader reader, File file ) throws IOException
+    {
+        int dumps = 0;
+        Iterator<ThreadDump> iter = reader.open( file );
+        try
+        {
+            for ( ; iter.hasNext(); iter.next() )
+            {
+                dumps++;
+            }
+        }
+        finally
+        {
+            if ( iter instanceof Closeable ) ( (Closeable) iter ).close();
+        }
+        return dumps;
+    }
+}
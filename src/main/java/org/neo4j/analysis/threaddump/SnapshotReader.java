@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.MonitorEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Reads the thread dumps of a snapshot written by {@link SnapshotWriter}. The
+ * snapshot is memory mapped, and any dump in it can be read without reading
+ * the dumps before it. Strings are decoded the first time they are used.
+ */
+public class SnapshotReader implements Iterable<ThreadDump>, Closeable
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final FileChannel channel;
+    private final long[] dumps;
+    private final ByteBuffer data;
+    private final Table strings, frames;
+    private final MethodEntry[] methods;
+    private final MonitorEntry[] locks, waits;
+    private final FrameTable frameTable = new FrameTable();
+    private final StackTrie stacks = new StackTrie();
+
+    public SnapshotReader( File file ) throws IOException
+    {
+        this.channel = new RandomAccessFile( file, "r" ).getChannel();
+        long size = channel.size();
+        ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, 8 );
+        if ( size < 8 + SnapshotWriter.TRAILER_SIZE || header.getLong() != SnapshotWriter.MAGIC )
+        {
+            channel.close();
+            throw new IOException( file + " is not a thread dump snapshot" );
+        }
+        ByteBuffer trailer = channel.map( FileChannel.MapMode.READ_ONLY, size - SnapshotWriter.TRAILER_SIZE,
+                SnapshotWriter.TRAILER_SIZE );
+        long stringTable = trailer.getLong(), frameTable = trailer.getLong(), index = trailer.getLong();
+        int count = trailer.getInt(), version = trailer.getInt();
+        if ( version != SnapshotWriter.VERSION )
+        {
+            channel.close();
+            throw new IOException( file + " is a snapshot of format version " + version + ", only version "
+                                   + SnapshotWriter.VERSION + " can be read" );
+        }
+        this.dumps = new long[count + 1];
+        ByteBuffer offsets = channel.map( FileChannel.MapMode.READ_ONLY, index, count * 8L );
+        for ( int i = 0; i < count; i++ )
+        {
+            dumps[i] = offsets.getLong();
+        }
+        dumps[count] = stringTable;
+        // map all dumps at once if they fit in one mapping, otherwise each dump is mapped when read
+        this.data = stringTable <= Integer.MAX_VALUE
+                ? channel.map( FileChannel.MapMode.READ_ONLY, 0, stringTable ) : null;
+        this.strings = new Table( channel.map( FileChannel.MapMode.READ_ONLY, stringTable, frameTable - stringTable ) );
+        this.frames = new Table( channel.map( FileChannel.MapMode.READ_ONLY, frameTable, index - frameTable ) );
+        this.methods = new MethodEntry[frames.size()];
+        this.locks = new MonitorEntry[strings.size()];
+        this.waits = new MonitorEntry[strings.size()];
+    }
+
+    /** @return the number of dumps in the snapshot. */
+    public int size()
+    {
+        return dumps.length - 1;
+    }
+
+    /** Reads the dump with the given index, without reading the dumps before it. */
+    public synchronized ThreadDump dump( int n ) throws IOException
+    {
+        if ( n < 0 || n >= size() ) throw new IndexOutOfBoundsException( "No dump " + n + " of " + size() );
+        ByteBuffer in;
+        if ( data != null )
+        {
+            in = data.duplicate();
+            in.position( (int) dumps[n] );
+        }
+        else
+        {
+            in = channel.map( FileChannel.MapMode.READ_ONLY, dumps[n], dumps[n + 1] - dumps[n] );
+        }
+        String date = strings.get( readVarint( in ) ), info = strings.get( readVarint( in ) );
+        ThreadData[] threads = new ThreadData[readVarint( in )];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            String threadInfo = strings.get( readVarint( in ) );
+            int state = readVarint( in );
+            int comment = readVarint( in );
+            StackElement[] stack = new StackElement[readVarint( in )];
+            for ( int i = 0; i < stack.length; i++ )
+            {
+                stack[i] = element( readVarint( in ) );
+            }
+            threads[t] = new ThreadData( threadInfo, state == 0 ? null : STATES[state - 1],
+                    comment == 0 ? null : strings.get( comment - 1 ), stacks.insert( stack ) );
+        }
+        LockGraph.Builder graph = new LockGraph.Builder();
+        for ( int m = readVarint( in ); m > 0; m-- )
+        {
+            String monitor = strings.get( readVarint( in ) );
+            for ( int edges = readVarint( in ); edges > 0; edges-- )
+            {
+                graph.owner( monitor, readVarint( in ), readVarint( in ) );
+            }
+            for ( int edges = readVarint( in ); edges > 0; edges-- )
+            {
+                int thread = readVarint( in ), frame = readVarint( in );
+                graph.waiter( monitor, thread, frame >>> 1, ( frame & 1 ) != 0 );
+            }
+        }
+        return new ThreadDump( date, info, Arrays.asList( threads ), graph.build( threads ) );
+    }
+
+    private StackElement element( int value )
+    {
+        int id = value >>> SnapshotWriter.TAG_BITS;
+        switch ( value & ( ( 1 << SnapshotWriter.TAG_BITS ) - 1 ) )
+        {
+        case SnapshotWriter.METHOD:
+            MethodEntry method = methods[id];
+            if ( method == null ) methods[id] = method = frameTable.intern( frames.get( id ) );
+            return method;
+        case SnapshotWriter.LOCK:
+            MonitorEntry lock = locks[id];
+            if ( lock == null ) locks[id] = lock = new LockMonitor( strings.get( id ) );
+            return lock;
+        case SnapshotWriter.WAIT:
+            MonitorEntry wait = waits[id];
+            if ( wait == null ) waits[id] = wait = new WaitMonitor( strings.get( id ) );
+            return wait;
+        default:
+            throw new IllegalArgumentException( "Unknown stack element tag in " + value );
+        }
+    }
+
+    static int readVarint( ByteBuffer in )
+    {
+        int value = 0;
+        for ( int shift = 0;; shift += 7 )
+        {
+            byte b = in.get();
+            value |= ( b & 0x7F ) << shift;
+            if ( b >= 0 ) return value;
+        }
+    }
+
+    public Iterator<ThreadDump> iterator()
+    {
+        return new Iterator<ThreadDump>()
+        {
+            private int next = 0;
+
+            public boolean hasNext()
+            {
+                return next < size();
+            }
+
+            public ThreadDump next()
+            {
+                if ( !hasNext() ) throw new NoSuchElementException();
+                try
+                {
+                    return dump( next++ );
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException( "java.util.Iterator<ThreadDump>.remove()" );
+            }
+        };
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * A table of strings, where the offsets of the strings are found when the
+     * table is opened, and each string is decoded when it is first used.
+     */
+    private static final class Table
+    {
+        private final ByteBuffer buffer;
+        private final int[] offsets, lengths;
+        private final String[] decoded;
+
+        Table( ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+            int size = readVarint( buffer );
+            this.offsets = new int[size];
+            this.lengths = new int[size];
+            for ( int i = 0; i < size; i++ )
+            {
+                lengths[i] = readVarint( buffer );
+                offsets[i] = buffer.position();
+                buffer.position( offsets[i] + lengths[i] );
+            }
+            this.decoded = new String[size];
+        }
+
+        int size()
+        {
+            return decoded.length;
+        }
+
+        synchronized String get( int id )
+        {
+            String string = decoded[id];
+            if ( string == null )
+            {
+                byte[] bytes = new byte[lengths[id]];
+                buffer.position( offsets[id] );
+                buffer.get( bytes );
+                decoded[id] = string = new String( bytes, SnapshotWriter.UTF8 );
+            }
+            return string;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes parsed thread dumps to a compact binary snapshot, that can be read
+ * back with {@link SnapshotReader} much faster than the text can be parsed.
+ *
+ * The file starts with a magic number, followed by the dump records. All
+ * strings and frames are written as varint ids into a string table and a
+ * frame table, that are written after the dumps. Then comes an index with the
+ * (fixed width) offset of each dump, and a trailer with the offsets of the
+ * tables and the index.
+ */
+public class SnapshotWriter implements Closeable
+{
+    static final long MAGIC = 0x5444534E41503031L; // "TDSNAP01"
+    static final int TRAILER_SIZE = 8 * 3 + 4 + 4;
+    /** The version of the format, the last int of the trailer. */
+    static final int VERSION = 1;
+    static final int METHOD = 0, LOCK = 1, WAIT = 2, TAG_BITS = 2;
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final OutputStream out;
+    private long position;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final Map<String, Integer> frames = new HashMap<String, Integer>();
+    private final List<Long> dumps = new ArrayList<Long>();
+
+    public SnapshotWriter( File file ) throws IOException
+    {
+        this.out = new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 );
+        writeLong( MAGIC );
+    }
+
+    public void write( ThreadDump dump ) throws IOException
+    {
+        dumps.add( position );
+        dump.snapshot( this );
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            long stringTable = position;
+            writeTable( strings );
+            long frameTable = position;
+            writeTable( frames );
+            long index = position;
+            for ( long offset : dumps )
+            {
+                writeLong( offset );
+            }
+            writeLong( stringTable );
+            writeLong( frameTable );
+            writeLong( index );
+            writeInt( dumps.size() );
+            writeInt( VERSION );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writeTable( Map<String, Integer> table ) throws IOException
+    {
+        String[] entries = new String[table.size()];
+        for ( Map.Entry<String, Integer> entry : table.entrySet() )
+        {
+            entries[entry.getValue()] = entry.getKey();
+        }
+        writeVarint( entries.length );
+        for ( String entry : entries )
+        {
+            byte[] bytes = entry.getBytes( UTF8 );
+            writeVarint( bytes.length );
+            out.write( bytes );
+            position += bytes.length;
+        }
+    }
+
+    void writeString( String string ) throws IOException
+    {
+        writeVarint( id( strings, string ) );
+    }
+
+    /** Writes a nullable string, as its id plus one. */
+    void writeOptionalString( String string ) throws IOException
+    {
+        writeVarint( string == null ? 0 : id( strings, string ) + 1 );
+    }
+
+    void writeElement( int tag, String line ) throws IOException
+    {
+        int id = id( tag == METHOD ? frames : strings, line );
+        writeVarint( ( id << TAG_BITS ) | tag );
+    }
+
+    private static int id( Map<String, Integer> table, String string )
+    {
+        Integer id = table.get( string );
+        if ( id == null ) table.put( string, id = table.size() );
+        return id;
+    }
+
+    void writeVarint( int value ) throws IOException
+    {
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            out.write( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+            position++;
+        }
+        out.write( value );
+        position++;
+    }
+
+    private void writeInt( int value ) throws IOException
+    {
+        for ( int shift = 24; shift >= 0; shift -= 8 )
+        {
+            out.write( value >>> shift );
+        }
+        position += 4;
+    }
+
+    private void writeLong( long value ) throws IOException
+    {
+        writeInt( (int) ( value >>> 32 ) );
+        writeInt( (int) value );
+    }
+
+    /**
+     * Converts the thread dump files given as arguments into a snapshot,
+     * written to the last argument.
+     */
+    public static void main( String... args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "usage: SnapshotWriter <dump file>... <snapshot file>" );
+            System.exit( 1 );
+        }
+        SnapshotWriter snapshot = new SnapshotWriter( new File( args[args.length - 1] ) );
+        try
+        {
+            for ( int i = 0; i < args.length - 1; i++ )
+            {
+                MappedThreadDumpFile dumps = new MappedThreadDumpFile( new File( args[i] ) );
+                try
+                {
+                    while ( dumps.hasNext() )
+                    {
+                        snapshot.write( dumps.next() );
+                    }
+                }
+                finally
+                {
+                    dumps.close();
+                }
+            }
+        }
+        finally
+        {
+            snapshot.close();
+        }
+    }
+}
@@ -19,25 +19,64 @@
  */
 package org.neo4j.analysis.threaddump;
 
+import java.io.IOException;
 import java.io.PrintStream;
 
 public abstract class StackElement
 {
     public static final class MethodEntry extends StackElement
     {
+        /** The table this frame was interned in, and its id there. */
+        private final FrameTable table;
+        final int frame;
         private final String line;
 
-        MethodEntry( String line )
+        MethodEntry( FrameTable table, int frame, String line )
         {
+            this.table = table;
+            this.frame = frame;
             this.line = line;
         }
 
+        /** @return the method and source location of this frame. */
+        String line()
+        {
+            return line;
+        }
+
+        @Override
+        void snapshot( SnapshotWriter out ) throws IOException
+        {
+            out.writeElement( SnapshotWriter.METHOD, line );
+        }
+
         @Override
         public String toString()
         {
             return "at " + line;
         }
 
+        @Override
+        void label( GraphvizWriter gv ) throws IOException
+        {
+            gv.append( "at " ).escape( line );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return line.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof MethodEntry ) ) return false;
+            MethodEntry other = (MethodEntry) obj;
+            // frames of the same table are interned, their ids are equal only if their lines are
+            return other.table == table ? other.frame == frame : other.line.equals( line );
+        }
+
         @Override
         boolean matches( String filter )
         {
@@ -59,16 +98,15 @@ public abstract class StackElement
             return line.substring( line.indexOf( '<' ) + 1, line.indexOf( '>' ) );
         }
 
-        abstract void update( ThreadData thread, int index, MonitorState state );
+        abstract void update( LockGraph.Builder graph, int thread, int index );
 
         @Override
-        void graphviz( PrintStream gv, String line, int index )
+        void graphviz( GraphvizWriter gv, int index ) throws IOException
         {
-            gv.print( "<TR><TD ALIGN=\"LEFT\" PORT=\"l" + index + "\">" + line
-                      + "</TD></TR>" );
+            gv.append( "<TR><TD ALIGN=\"LEFT\" PORT=\"" ).port( index ).append( "\">" );
+            label( gv );
+            gv.append( "</TD></TR>" );
         }
-
-        abstract String color();
     }
 
     public static final class LockMonitor extends MonitorEntry
@@ -81,6 +119,12 @@ public abstract class StackElement
             this.line = line;
         }
 
+        @Override
+        void snapshot( SnapshotWriter out ) throws IOException
+        {
+            out.writeElement( SnapshotWriter.LOCK, line );
+        }
+
         @Override
         public String toString()
         {
@@ -88,15 +132,27 @@ public abstract class StackElement
         }
 
         @Override
-        void update( ThreadData thread, int index, MonitorState state )
+        void label( GraphvizWriter gv ) throws IOException
         {
-            state.owners.add( new ThreadMonitor( this, thread, index ) );
+            gv.append( " - " ).escape( line );
         }
 
         @Override
-        String color()
+        public int hashCode()
         {
-            return "green";
+            return line.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return ( obj instanceof LockMonitor ) && ( (LockMonitor) obj ).line.equals( line );
+        }
+
+        @Override
+        void update( LockGraph.Builder graph, int thread, int index )
+        {
+            graph.owner( id, thread, index );
         }
     }
 
@@ -110,6 +166,22 @@ public abstract class StackElement
             this.line = line;
         }
 
+        /**
+         * @return <code>true</code> if the thread is blocked on entering the
+         *         monitor (or parked on it), <code>false</code> if it is in
+         *         {@link Object#wait()} and has released it.
+         */
+        boolean isBlocking()
+        {
+            return !line.startsWith( "waiting on" );
+        }
+
+        @Override
+        void snapshot( SnapshotWriter out ) throws IOException
+        {
+            out.writeElement( SnapshotWriter.WAIT, line );
+        }
+
         @Override
         public String toString()
         {
@@ -117,15 +189,27 @@ public abstract class StackElement
         }
 
         @Override
-        void update( ThreadData thread, int index, MonitorState state )
+        void label( GraphvizWriter gv ) throws IOException
         {
-            state.waiters.add( new ThreadMonitor( this, thread, index ) );
+            gv.append( " - " ).escape( line );
         }
 
         @Override
-        String color()
+        public int hashCode()
         {
-            return "red";
+            return line.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return ( obj instanceof WaitMonitor ) && ( (WaitMonitor) obj ).line.equals( line );
+        }
+
+        @Override
+        void update( LockGraph.Builder graph, int thread, int index )
+        {
+            graph.waiter( id, thread, index, isBlocking() );
         }
     }
 
@@ -134,47 +218,25 @@ public abstract class StackElement
         return false;
     }
 
+    abstract void snapshot( SnapshotWriter out ) throws IOException;
+
     void print( PrintStream out )
     {
         out.println( "    " + this );
     }
 
-    final void graphviz( PrintStream gv, int index )
+    void graphviz( GraphvizWriter gv, int index ) throws IOException
     {
-        String repr = toString();
-        repr = repr.replace( "&", "&amp;" );
-        repr = repr.replace( "<", "&lt;" );
-        repr = repr.replace( ">", "&gt;" );
-        graphviz( gv, repr, index );
+        gv.append( "<TR><TD ALIGN=\"LEFT\">" );
+        label( gv );
+        gv.append( "</TD></TR>" );
     }
 
-    void graphviz( PrintStream gv, String line, int index )
-    {
-        gv.print( "<TR><TD ALIGN=\"LEFT\">" + line + "</TD></TR>" );
-    }
+    /** Writes the same text as {@link #toString()}, escaped. */
+    abstract void label( GraphvizWriter gv ) throws IOException;
 
-    static StackElement readFrom( String line )
-    {
-        if ( line.startsWith( "at" ) )
-        {
-            return new MethodEntry( line.substring( 3 ) );
-        }
-        else if ( line.startsWith( "-" ) )
-        {
-            line = line.substring( 2 );
-            if ( line.startsWith( "lock" ) )
-            {
-                return new LockMonitor( line );
-            }
-            else if ( line.startsWith( "park" ) || line.startsWith( "wait" ) )
-            {
-                return new WaitMonitor( line );
-            }
-        }
-        else if ( line.startsWith( "Local Variable:" ) )
-        {
-            // a root in a heap dump
-        }
-        throw new IllegalArgumentException( line );
-    }
+    /** The prefix of the lines of the ownable synchronizers a thread holds, that are kept as locks. */
+    static final String OWNABLE = "locked ownable synchronizer ";
+
+    static final String[] IGNORED = { "Locked ownable synchronizers:", "No compile task", "Compiling:" };
 }
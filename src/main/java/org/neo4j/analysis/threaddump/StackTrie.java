@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores stacks as paths in a trie that is rooted at the bottom of the stack,
+ * so that threads share the nodes of their common frames. A thread only keeps
+ * a reference to the node of its top frame, threads with identical stacks
+ * refer to the same node.
+ *
+ * Lookups of existing children don't lock, so the trie can be shared by the
+ * parsers of dump regions that run in parallel.
+ */
+final class StackTrie
+{
+    private final Node root = new Node( null, null );
+
+    /** @return the node of the empty stack. */
+    Node root()
+    {
+        return root;
+    }
+
+    /**
+     * @param stack the elements of a stack, top frame first.
+     * @return the node of the top frame of the stack.
+     */
+    Node insert( StackElement[] stack )
+    {
+        return insert( stack, stack.length );
+    }
+
+    /** Inserts the stack of the first <code>length</code> elements of <code>stack</code>. */
+    Node insert( StackElement[] stack, int length )
+    {
+        Node node = root;
+        for ( int i = length - 1; i >= 0; i-- )
+        {
+            node = node.child( stack[i] );
+        }
+        return node;
+    }
+
+    static final class Node
+    {
+        final StackElement element;
+        final Node parent;
+        /** The number of elements on the stack this node is the top of. */
+        final int depth;
+        private volatile Map<StackElement, Node> children = Collections.emptyMap();
+
+        private Node( StackElement element, Node parent )
+        {
+            this.element = element;
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        private Node child( StackElement element )
+        {
+            Node child = children.get( element );
+            if ( child != null ) return child;
+            synchronized ( this )
+            {
+                Map<StackElement, Node> children = this.children;
+                child = children.get( element );
+                if ( child == null )
+                {
+                    child = new Node( element, this );
+                    if ( children.isEmpty() )
+                    {
+                        children = Collections.singletonMap( element, child );
+                    }
+                    else
+                    {
+                        children = new HashMap<StackElement, Node>( children );
+                        children.put( element, child );
+                    }
+                    this.children = children;
+                }
+                return child;
+            }
+        }
+
+        /** @return the elements of this stack, top frame first. */
+        StackElement[] toArray()
+        {
+            StackElement[] stack = new StackElement[depth];
+            int index = 0;
+            for ( Node node = this; node.parent != null; node = node.parent )
+            {
+                stack[index++] = node.element;
+            }
+            return stack;
+        }
+    }
+}
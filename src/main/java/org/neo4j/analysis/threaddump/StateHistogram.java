@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The number of threads in each state of a thread dump. Histograms are
+ * scanned from the first two lines of each thread only, without reading the
+ * stacks, which makes getting an overview of a large log much faster than
+ * parsing it.
+ */
+public class StateHistogram
+{
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final String date;
+    /** Counts by state ordinal, threads without a state last. */
+    private final int[] counts = new int[STATES.length + 1];
+
+    StateHistogram( String date )
+    {
+        this.date = date;
+    }
+
+    StateHistogram( String date, int[] counts )
+    {
+        this.date = date;
+        System.arraycopy( counts, 0, this.counts, 0, this.counts.length );
+    }
+
+    /** The number of slots of a histogram, one per state and one for threads without a state. */
+    static int slots()
+    {
+        return STATES.length + 1;
+    }
+
+    int[] counts()
+    {
+        return counts.clone();
+    }
+
+    public String date()
+    {
+        return date;
+    }
+
+    /** @return the number of threads in the given state, or without a state if <code>null</code>. */
+    public int count( Thread.State state )
+    {
+        return counts[state == null ? STATES.length : state.ordinal()];
+    }
+
+    public int total()
+    {
+        int total = 0;
+        for ( int count : counts )
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    void add( Thread.State state )
+    {
+        counts[state == null ? STATES.length : state.ordinal()]++;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder( date ).append( " - " ).append( total() ).append( " threads" );
+        for ( Thread.State state : STATES )
+        {
+            if ( count( state ) != 0 ) result.append( ", " ).append( state ).append( ": " ).append( count( state ) );
+        }
+        if ( count( null ) != 0 ) result.append( ", no state: " ).append( count( null ) );
+        return result.toString();
+    }
+
+    /**
+     * Scans the dumps of a file for the states of their threads. The dumps
+     * are the same as {@link ThreadDumpParser} would find.
+     */
+    public static List<StateHistogram> scan( File file ) throws IOException
+    {
+        FileChannel channel = new RandomAccessFile( file, "r" ).getChannel();
+        try
+        {
+            return scan( new MappedChunkSource( channel, 0, channel.size() ) );
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    static List<StateHistogram> scan( ChunkSource chunks ) throws IOException
+    {
+        List<StateHistogram> result = new ArrayList<StateHistogram>();
+        ByteChunk chunk = new ByteChunk();
+        String date = "unkown";
+        StateHistogram current = null;
+        while ( chunks.next( chunk ) )
+        {
+            if ( chunk.isHeader() )
+            {
+                current = null;
+                date = chunk.string( 0 );
+            }
+            else if ( ThreadDumpParser.isThread( chunk ) )
+            {
+                if ( current == null )
+                {
+                    result.add( current = new StateHistogram( date ) );
+                    date = "unkown";
+                }
+                current.add( state( chunk ) );
+            }
+        }
+        return result;
+    }
+
+    private static Thread.State state( ByteChunk chunk )
+    {
+        if ( chunk.size() < 2 || !chunk.startsWith( 1, ThreadDumpParser.STATE_PREFIX ) ) return null;
+        int start = chunk.skipWhitespace( 1, ThreadDumpParser.STATE_PREFIX.length() );
+        int end = chunk.indexOf( 1, start, ' ' );
+        return ThreadDumpParser.state( chunk, 1, start, end == -1 ? chunk.length( 1 ) : end );
+    }
+
+    public static void main( String... args ) throws IOException
+    {
+        if ( args.length == 0 )
+        {
+            System.err.println( "usage: StateHistogram <dump file>..." );
+            System.exit( 1 );
+        }
+        for ( String arg : args )
+        {
+            for ( StateHistogram histogram : scan( new File( arg ) ) )
+            {
+                System.out.println( histogram );
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the chunks of a stream, such as an inflated archive, that can't be
+ * memory mapped. The bytes are read into a buffer that is replaced, not
+ * overwritten, when more is read, so the chunks are only valid until the
+ * next one is read: parsers of this source must decode the stacks eagerly.
+ */
+final class StreamChunkSource implements ChunkSource
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final InputStream input;
+    private byte[] bytes;
+    private int filled;
+    private boolean eof;
+    private ChunkScanner scanner;
+
+    StreamChunkSource( InputStream input )
+    {
+        this.input = input;
+    }
+
+    public boolean next( ByteChunk chunk ) throws IOException
+    {
+        for ( ;; )
+        {
+            if ( scanner != null && scanner.next( chunk ) )
+            {
+                if ( chunk.isTerminated() || eof ) return true;
+                // the chunk continues past what has been read, read more and scan it again
+                fill( chunk.start() );
+            }
+            else if ( !eof )
+            {
+                fill( scanner == null ? 0 : scanner.position() );
+            }
+            else
+            {
+                return false;
+            }
+        }
+    }
+
+    /** Reads more into a new buffer, that starts with the bytes from <code>from</code> of the current one. */
+    private void fill( int from ) throws IOException
+    {
+        int left = filled - from;
+        byte[] bytes = new byte[Math.max( BUFFER_SIZE, left * 2 )];
+        if ( left > 0 ) System.arraycopy( this.bytes, from, bytes, 0, left );
+        int filled = left;
+        while ( filled < bytes.length )
+        {
+            int read = input.read( bytes, filled, bytes.length - filled );
+            if ( read == -1 )
+            {
+                eof = true;
+                break;
+            }
+            filled += read;
+        }
+        this.bytes = bytes;
+        this.filled = filled;
+        scanner = new ChunkScanner( ByteBuffer.wrap( bytes, 0, filled ) );
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Follows the threads of a sequence of dumps, such as the ones taken at a
+ * fixed interval by a watchdog, and reports threads that stay in the same
+ * place. A thread is stuck when the top frames of its stack and its state are
+ * the same in consecutive dumps, and a lock is held across dumps when the
+ * same thread has locked the same monitor in consecutive dumps.
+ *
+ * Dumps are consumed one at a time with {@link #update(ThreadDump)}, only the
+ * threads of the last dump are tracked.
+ */
+public class StuckThreadDetector
+{
+    public interface Listener
+    {
+        /** The thread has had the same top frames in the last <code>dumps</code> dumps. */
+        void stuck( ThreadDump dump, ThreadData thread, int dumps );
+
+        /** The thread has held <code>monitor</code> in the last <code>dumps</code> dumps. */
+        void lockHeld( ThreadDump dump, ThreadData thread, String monitor, int dumps );
+    }
+
+    private final int frames;
+    private final int threshold;
+    private final Listener listener;
+    private Map<String, Track> live = new HashMap<String, Track>();
+
+    /**
+     * @param frames the number of top frames of a stack that are compared.
+     * @param threshold the number of consecutive dumps a thread or lock has to
+     *            stay the same before it is reported.
+     */
+    public StuckThreadDetector( int frames, int threshold, Listener listener )
+    {
+        this.frames = frames;
+        this.threshold = threshold;
+        this.listener = listener;
+    }
+
+    public void update( ThreadDump dump )
+    {
+        Map<String, Track> next = new HashMap<String, Track>( live.size() * 2 + 16 );
+        for ( ThreadData thread : dump )
+        {
+            if ( thread.isSystemThread() ) continue;
+            String key = thread.key();
+            if ( next.containsKey( key ) ) continue; // ambiguous key, track the first thread
+            Track track = live.remove( key );
+            if ( track == null ) track = new Track();
+            next.put( key, track );
+            track.update( dump, thread );
+        }
+        // threads that are not in this dump have ended
+        live = next;
+    }
+
+    /** @return the number of threads that are currently tracked. */
+    public int size()
+    {
+        return live.size();
+    }
+
+    private final class Track
+    {
+        private int hash;
+        private int dumps;
+        private String[] monitors = {};
+        private int[] held = {};
+
+        void update( ThreadDump dump, ThreadData thread )
+        {
+            int hash = hash( thread );
+            dumps = ( dumps > 0 && hash == this.hash ) ? dumps + 1 : 1;
+            this.hash = hash;
+            if ( dumps >= threshold ) listener.stuck( dump, thread, dumps );
+
+            String[] monitors = new String[this.monitors.length];
+            int[] held = new int[monitors.length];
+            int count = 0;
+            for ( StackTrie.Node node = thread.stack(); node.parent != null; node = node.parent )
+            {
+                if ( !( node.element instanceof LockMonitor ) ) continue;
+                String monitor = ( (LockMonitor) node.element ).id;
+                if ( isWaitingOn( thread, monitor ) ) continue;
+                if ( count == monitors.length )
+                {
+                    monitors = Arrays.copyOf( monitors, count * 2 + 2 );
+                    held = Arrays.copyOf( held, count * 2 + 2 );
+                }
+                monitors[count] = monitor;
+                held[count] = heldBefore( monitor ) + 1;
+                if ( held[count] >= threshold ) listener.lockHeld( dump, thread, monitor, held[count] );
+                count++;
+            }
+            this.monitors = count == monitors.length ? monitors : Arrays.copyOf( monitors, count );
+            this.held = count == held.length ? held : Arrays.copyOf( held, count );
+        }
+
+        private int heldBefore( String monitor )
+        {
+            for ( int i = 0; i < monitors.length; i++ )
+            {
+                if ( monitors[i].equals( monitor ) ) return held[i];
+            }
+            return 0;
+        }
+
+        /** A thread in {@link Object#wait()} has released the monitor it waits on. */
+        private boolean isWaitingOn( ThreadData thread, String monitor )
+        {
+            for ( StackTrie.Node node = thread.stack(); node.parent != null; node = node.parent )
+            {
+                if ( node.element instanceof WaitMonitor && !( (WaitMonitor) node.element ).isBlocking()
+                     && ( (WaitMonitor) node.element ).id.equals( monitor ) ) return true;
+            }
+            return false;
+        }
+
+        private int hash( ThreadData thread )
+        {
+            int hash = thread.state().hashCode(), depth = 0;
+            for ( StackTrie.Node node = thread.stack(); node.parent != null && depth < frames; node = node.parent )
+            {
+                hash = 31 * hash + node.element.hashCode();
+                depth++;
+            }
+            return hash;
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        if ( args.length < 1 )
+        {
+            System.err.println( "usage: StuckThreadDetector [--threshold N] [--frames N] <dump file>..." );
+            System.exit( 1 );
+        }
+        int threshold = 3, frames = 8, i = 0;
+        for ( ; i < args.length - 1 && args[i].startsWith( "--" ); i += 2 )
+        {
+            if ( "--threshold".equals( args[i] ) ) threshold = Integer.parseInt( args[i + 1] );
+            else if ( "--frames".equals( args[i] ) ) frames = Integer.parseInt( args[i + 1] );
+            else break;
+        }
+        final PrintStream out = System.out;
+        StuckThreadDetector detector = new StuckThreadDetector( frames, threshold, new Listener()
+        {
+            public void stuck( ThreadDump dump, ThreadData thread, int dumps )
+            {
+                out.println( dump.date() + ": " + thread.id + " stuck for " + dumps + " dumps" );
+            }
+
+            public void lockHeld( ThreadDump dump, ThreadData thread, String monitor, int dumps )
+            {
+                out.println( dump.date() + ": " + thread.id + " held <" + monitor + "> across " + dumps + " dumps" );
+            }
+        } );
+        for ( ; i < args.length; i++ )
+        {
+            MappedThreadDumpFile dumps = new MappedThreadDumpFile( new File( args[i] ) );
+            try
+            {
+                while ( dumps.hasNext() )
+                {
+                    detector.update( dumps.next() );
+                }
+            }
+            finally
+            {
+                dumps.close();
+            }
+        }
+    }
+}
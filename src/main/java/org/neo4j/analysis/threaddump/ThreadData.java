@@ -19,31 +19,148 @@
  */
 package org.neo4j.analysis.threaddump;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.neo4j.analysis.threaddump.StackElement.MonitorEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
 
 public class ThreadData
 {
-    private final StackElement[] stack;
+    private volatile StackTrie.Node stack;
+    /** The stack as it was read, until it is decoded. */
+    private RawStack raw;
     private final String info;
     private final Thread.State state;
     private final String stateComment;
     final String id;
-    private static int idgen = 0;
+    /** Fields of the first line, -1 where the dump does not have them, times in nanoseconds. */
+    private long tid = -1, nid = -1, cpu = -1, elapsed = -1;
+    private int number = -1, priority = -1, osPriority = -1;
+    private boolean daemon;
+    private static final AtomicInteger idgen = new AtomicInteger();
 
-    ThreadData( String info, Thread.State state, String stateComment, StackElement... stack )
+    ThreadData( String info, Thread.State state, String stateComment, StackTrie.Node stack )
     {
-        String idString = info.substring( 0, info.indexOf( '"', 1 ) + 1 );
-        if ( idString.length() == 0 ) idString = "\"Unknown thread " + ( idgen++ ) + "\"";
+        this( info, state, stateComment );
+        this.stack = stack;
+    }
+
+    /**
+     * Creates a thread whose stack is decoded from <code>raw</code> when it is
+     * first used.
+     */
+    ThreadData( String info, Thread.State state, String stateComment, RawStack raw )
+    {
+        this( info, state, stateComment );
+        this.raw = raw;
+    }
+
+    private ThreadData( String info, Thread.State state, String stateComment )
+    {
+        int nameEnd = info.indexOf( '"', 1 ) + 1;
+        String idString = info.substring( 0, nameEnd );
+        if ( idString.length() == 0 ) idString = "\"Unknown thread " + idgen.getAndIncrement() + "\"";
         this.id = idString;
         this.info = info;
         this.state = state;
         this.stateComment = stateComment;
-        this.stack = stack;
+        if ( nameEnd != 0 ) readFields( nameEnd );
+    }
+
+    /**
+     * Reads the fields that follow the name on the first line, in one pass
+     * and without allocating:
+     * <code>#1 daemon prio=5 os_prio=0 cpu=66.38ms elapsed=2.43s tid=0x00007f55bc024ef0 nid=0x3b7</code>,
+     * where any of the fields may be missing. Reading stops at the first word
+     * that is not a field, where the description of what the thread does
+     * starts.
+     */
+    private void readFields( int pos )
+    {
+        final String info = this.info;
+        final int length = info.length();
+        for ( ;; )
+        {
+            while ( pos < length && info.charAt( pos ) == ' ' )
+            {
+                pos++;
+            }
+            int end = info.indexOf( ' ', pos );
+            if ( end == -1 ) end = length;
+            if ( pos == end ) return;
+            if ( info.charAt( pos ) == '#' ) number = (int) number( info, pos + 1, end );
+            else if ( info.charAt( pos ) == '[' )
+            {
+                // the os thread id of JDK 19 and later, the same as nid
+            }
+            else if ( word( info, pos, end, "daemon" ) ) daemon = true;
+            else if ( info.startsWith( "prio=", pos ) ) priority = (int) number( info, pos + 5, end );
+            else if ( info.startsWith( "os_prio=", pos ) ) osPriority = (int) number( info, pos + 8, end );
+            else if ( info.startsWith( "cpu=", pos ) ) cpu = nanos( info, pos + 4, end );
+            else if ( info.startsWith( "elapsed=", pos ) ) elapsed = nanos( info, pos + 8, end );
+            else if ( info.startsWith( "tid=", pos ) ) tid = number( info, pos + 4, end );
+            else if ( info.startsWith( "nid=", pos ) ) nid = number( info, pos + 4, end );
+            else return;
+            pos = end;
+        }
+    }
+
+    private static boolean word( String info, int pos, int end, String word )
+    {
+        return end - pos == word.length() && info.startsWith( word, pos );
+    }
+
+    /** @return the decimal, or 0x prefixed hexadecimal, number, or -1 if it is not a number. */
+    private static long number( String info, int pos, int end )
+    {
+        int radix = 10;
+        if ( end - pos > 2 && info.charAt( pos ) == '0' && info.charAt( pos + 1 ) == 'x' )
+        {
+            radix = 16;
+            pos += 2;
+        }
+        if ( pos == end ) return -1;
+        long value = 0;
+        for ( ; pos < end; pos++ )
+        {
+            int digit = Character.digit( info.charAt( pos ), radix );
+            if ( digit < 0 ) return -1;
+            value = value * radix + digit;
+        }
+        return value;
+    }
+
+    /** @return a duration like <code>66.38ms</code> or <code>2.43s</code> in nanoseconds, or -1. */
+    private static long nanos( String info, int pos, int end )
+    {
+        long whole = 0, fraction = 0, scale = 1;
+        boolean point = false, digits = false;
+        for ( ; pos < end; pos++ )
+        {
+            char c = info.charAt( pos );
+            if ( c == '.' && !point ) point = true;
+            else if ( c >= '0' && c <= '9' )
+            {
+                digits = true;
+                if ( !point ) whole = whole * 10 + ( c - '0' );
+                else if ( scale < 1000000000L )
+                {
+                    fraction = fraction * 10 + ( c - '0' );
+                    scale *= 10;
+                }
+            }
+            else break;
+        }
+        long unit;
+        if ( word( info, pos, end, "s" ) ) unit = 1000000000L;
+        else if ( word( info, pos, end, "ms" ) ) unit = 1000000L;
+        else if ( word( info, pos, end, "us" ) ) unit = 1000L;
+        else if ( word( info, pos, end, "ns" ) ) unit = 1L;
+        else return -1;
+        return digits ? whole * unit + fraction * unit / scale : -1;
     }
 
     public boolean isSystemThread()
@@ -51,30 +168,116 @@ public class ThreadData
         return state == null;
     }
 
+    Thread.State state()
+    {
+        return state;
+    }
+
+    /**
+     * @return a key that identifies this thread across dumps of the same VM:
+     *         its name, and its native thread id where the dump has one, or
+     *         else its Java thread id (virtual threads have no native one).
+     */
+    String key()
+    {
+        if ( nid != -1 ) return id + " " + nid;
+        return number == -1 ? id : id + " #" + number;
+    }
+
+    /** @return the address of the thread in the VM, or -1 if the dump does not have it. */
+    long tid()
+    {
+        return tid;
+    }
+
+    /** @return the native id of the thread, or -1 if the dump does not have it. */
+    long nid()
+    {
+        return nid;
+    }
+
+    /** @return the CPU time the thread has used, in nanoseconds, or -1 if the dump does not have it. */
+    long cpu()
+    {
+        return cpu;
+    }
+
+    /** @return the time since the thread started, in nanoseconds, or -1 if the dump does not have it. */
+    long elapsed()
+    {
+        return elapsed;
+    }
+
+    /** @return the <code>#N</code> number of the thread, or -1 if the dump does not have it. */
+    int number()
+    {
+        return number;
+    }
+
+    boolean isDaemon()
+    {
+        return daemon;
+    }
+
+    /** @return the Java priority of the thread, or -1 if the dump does not have it. */
+    int priority()
+    {
+        return priority;
+    }
+
+    /** @return the OS priority of the thread, or -1 if the dump does not have it. */
+    int osPriority()
+    {
+        return osPriority;
+    }
+
+    /** @return the node of the top frame of the stack of this thread. */
+    StackTrie.Node stack()
+    {
+        StackTrie.Node stack = this.stack;
+        if ( stack == null )
+        {
+            synchronized ( this )
+            {
+                stack = this.stack;
+                if ( stack == null )
+                {
+                    this.stack = stack = raw.decode();
+                    raw = null;
+                }
+            }
+        }
+        return stack;
+    }
+
     boolean matches( String filter )
     {
         if ( filter == null ) return true;
-        for ( StackElement element : stack )
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
+        {
+            if ( node.element.matches( filter ) ) return true;
+        }
+        return false;
+    }
+
+    boolean matches( FrameFilter filter )
+    {
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
         {
-            if ( element.matches( filter ) ) return true;
+            if ( filter.matches( node.element ) ) return true;
         }
         return false;
     }
 
-    void setup( Map<String, MonitorState> monitors )
+    void setup( LockGraph.Builder graph, int thread )
     {
-        for ( int index = 0; index < stack.length; index++ )
+        int index = 0;
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent, index++ )
         {
-            StackElement element = stack[index];
+            StackElement element = node.element;
             if ( element instanceof MonitorEntry )
             {
-                MonitorEntry monitor = (MonitorEntry) element;
-                MonitorState monitorState = monitors.get( monitor.id );
-                if ( monitorState == null )
-                {
-                    monitors.put( monitor.id, monitorState = new MonitorState( monitor.id ) );
-                }
-                monitor.update( this, index, monitorState );
+                ( (MonitorEntry) element ).update( graph, thread, index );
             }
         }
     }
@@ -83,25 +286,62 @@ public class ThreadData
     {
         out.println( info );
         if ( state != null ) out.println( "  java.lang.Thread.State: " + state + stateComment() );
-        for ( StackElement element : stack )
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
         {
-            element.print( out );
+            node.element.print( out );
         }
     }
 
-    void graphviz( PrintStream gv )
+    /**
+     * @param count the number of threads with this stack that this node
+     *            stands for, when the graph is pruned.
+     */
+    void graphviz( GraphvizWriter gv, int count ) throws IOException
     {
-        gv.print( "  " + id + " [\n    shape=none\n    label=<<TABLE>" );
-        gv.print( "<TR><TD>" + info + "</TD></TR>" );
+        gv.append( "  " ).append( id ).append( " [\n    shape=none\n    label=<<TABLE>" );
+        gv.append( "<TR><TD>" ).escape( info );
+        if ( count > 1 ) gv.append( " (" ).append( count ).append( " threads)" );
+        gv.append( "</TD></TR>" );
         if ( state != null )
-            gv.print( "<TR><TD>java.lang.Thread.State: " + state + stateComment() + "</TD></TR>" );
-        for ( int index = 0; index < stack.length; index++ )
         {
-            StackElement element = stack[index];
-            element.graphviz( gv, index );
+            gv.append( "<TR><TD>java.lang.Thread.State: " ).append( state.name() );
+            if ( stateComment != null ) gv.append( " " ).escape( stateComment );
+            gv.append( "</TD></TR>" );
+        }
+        int index = 0;
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
+        {
+            if ( index == gv.maxDepth() )
+            {
+                gv.append( "<TR><TD ALIGN=\"LEFT\" PORT=\"lmore\">... " ).append( stack().depth - index )
+                        .append( " more</TD></TR>" );
+                break;
+            }
+            node.element.graphviz( gv, index++ );
+        }
+        gv.append( "</TABLE>>\n  ]\n" );
+    }
+
+    /** @return <code>true</code> if this thread waits for, or is blocked on, a monitor. */
+    boolean isWaiting()
+    {
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
+        {
+            if ( node.element instanceof WaitMonitor ) return true;
+        }
+        return false;
+    }
+
+    void snapshot( SnapshotWriter out ) throws IOException
+    {
+        out.writeString( info );
+        out.writeVarint( state == null ? 0 : state.ordinal() + 1 );
+        out.writeOptionalString( stateComment );
+        out.writeVarint( stack().depth );
+        for ( StackTrie.Node node = stack(); node.parent != null; node = node.parent )
+        {
+            node.element.snapshot( out );
         }
-        gv.print( "</TABLE>>\n  ]" );
-        gv.println();
     }
 
     private String stateComment()
@@ -109,25 +349,48 @@ public class ThreadData
         return stateComment != null ? " " + stateComment : "";
     }
 
-    static ThreadData readFrom( String[] chunk )
+    /**
+     * The lines of a stack, as they were read. Decoding stacks only when they
+     * are used saves building their elements, and registering their monitors,
+     * for threads that are only looked at by name and state.
+     */
+    static abstract class RawStack
     {
-        if ( chunk.length == 1 ) return new ThreadData( chunk[0], null, null );
-        if ( !chunk[0].startsWith( "\"" ) ) return null;
-        Thread.State state = null;
-        String stateComment = null;
-        int i = 1;
-        if ( chunk[i].startsWith( "java.lang.Thread.State:" ) )
+        private final StackTrie stacks;
+        private StackElement[] owned;
+
+        RawStack( StackTrie stacks )
         {
-            String[] stateDescr = chunk[i++].split( ":", 2 )[1].trim().split( " ", 2 );
-            state = Thread.State.valueOf( stateDescr[0] );
-            if ( stateDescr.length == 2 ) stateComment = stateDescr[1].trim();
+            this.stacks = stacks;
         }
-        List<StackElement> stack = new ArrayList<StackElement>();
-        while ( i < chunk.length )
+
+        /** Adds elements below the stack, for the ownable synchronizers the thread holds. */
+        void own( StackElement[] owned )
         {
-            stack.add( StackElement.readFrom( chunk[i++] ) );
+            this.owned = owned;
+        }
+
+        /** @return the elements of the lines, <code>null</code> for lines that are ignored. */
+        abstract StackElement[] elements();
+
+        final StackTrie.Node decode()
+        {
+            long start = ParseStatistics.start();
+            StackElement[] lines = elements();
+            int size = 0;
+            StackElement[] stack = new StackElement[lines.length + ( owned == null ? 0 : owned.length )];
+            for ( StackElement element : lines )
+            {
+                if ( element != null ) stack[size++] = element;
+            }
+            if ( owned != null )
+            {
+                System.arraycopy( owned, 0, stack, size, owned.length );
+                size += owned.length;
+            }
+            StackTrie.Node node = stacks.insert( size == stack.length ? stack : Arrays.copyOf( stack, size ) );
+            ParseStatistics.stackDecoded( start );
+            return node;
         }
-        return new ThreadData( chunk[0], state, stateComment,
-                stack.toArray( new StackElement[stack.size()] ) );
     }
 }
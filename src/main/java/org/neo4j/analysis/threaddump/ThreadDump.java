@@ -22,30 +22,70 @@ package org.neo4j.analysis.threaddump;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class ThreadDump implements Iterable<ThreadData>
 {
-    private final Collection<ThreadData> threads;
-    private final Map<String, MonitorState> monitors;
+    private final List<ThreadData> threads;
+    /** Built when it is first used, so that stacks are only decoded when needed. */
+    private volatile LockGraph locks;
     private final String date;
     private final String info;
+    private static final Thread.State[] STATES = Thread.State.values();
 
     ThreadDump( String[] header, Collection<ThreadData> threads )
     {
         this.date = header == null ? "unkown" : header[0];
         this.info = header == null ? "unkown" : header[1];
-        this.threads = threads;
-        this.monitors = new HashMap<String, MonitorState>();
-        for ( ThreadData thread : threads )
+        this.threads = list( threads );
+    }
+
+    ThreadDump( String date, String info, Collection<ThreadData> threads, LockGraph locks )
+    {
+        this.date = date;
+        this.info = info;
+        this.threads = list( threads );
+        this.locks = locks;
+    }
+
+    private static List<ThreadData> list( Collection<ThreadData> threads )
+    {
+        return threads instanceof List<?> ? (List<ThreadData>) threads : new ArrayList<ThreadData>( threads );
+    }
+
+    LockGraph locks()
+    {
+        LockGraph locks = this.locks;
+        if ( locks == null )
         {
-            thread.setup( monitors );
+            synchronized ( this )
+            {
+                locks = this.locks;
+                if ( locks == null )
+                {
+                    for ( ThreadData thread : threads )
+                    {
+                        thread.stack(); // decoded first, which is timed as a stage of its own
+                    }
+                    long start = ParseStatistics.start();
+                    LockGraph.Builder graph = new LockGraph.Builder();
+                    int index = 0;
+                    for ( ThreadData thread : threads )
+                    {
+                        thread.setup( graph, index++ );
+                    }
+                    this.locks = locks = graph.build( threads.toArray( new ThreadData[threads.size()] ) );
+                    ParseStatistics.dumpConstructed( start );
+                }
+            }
         }
+        return locks;
     }
 
     @Override
@@ -54,6 +94,23 @@ public class ThreadDump implements Iterable<ThreadData>
         return date + " - " + threads.size() + " threads";
     }
 
+    String date()
+    {
+        return date;
+    }
+
+    /** @return the number of threads in this dump. */
+    int size()
+    {
+        return threads.size();
+    }
+
+    /** @return the thread at <code>index</code>, in the order of the dump. */
+    ThreadData thread( int index )
+    {
+        return threads.get( index );
+    }
+
     public Iterator<ThreadData> iterator()
     {
         return threads.iterator();
@@ -61,33 +118,90 @@ public class ThreadDump implements Iterable<ThreadData>
 
     void dumpGraphvizFile( File directory, String filter ) throws IOException
     {
-        PrintStream output = new PrintStream( new File( directory, date.replace( ' ', '_' ) + ".gv" ) );
-        graphviz( output, filter );
+        dumpGraphvizFile( directory, filter, GraphvizWriter.ALL_FRAMES, false );
+    }
+
+    /**
+     * @param maxDepth the maximal number of frames to write for each thread.
+     * @param prune if threads with identical stacks that wait on the same
+     *            monitor should be collapsed into one node.
+     */
+    void dumpGraphvizFile( File directory, String filter, int maxDepth, boolean prune ) throws IOException
+    {
+        writeGraphvizFile( new File( directory, graphvizName() ), filter, maxDepth, prune );
+    }
+
+    /** @return the name of the graphviz file of this dump, from its date. */
+    String graphvizName()
+    {
+        return date.replace( ' ', '_' ) + ".gv";
+    }
+
+    void writeGraphvizFile( File file, String filter, int maxDepth, boolean prune ) throws IOException
+    {
+        GraphvizWriter gv = new GraphvizWriter( file, maxDepth, prune );
+        try
+        {
+            graphviz( gv, filter );
+        }
+        finally
+        {
+            gv.close();
+        }
     }
 
-    private void graphviz( PrintStream gv, String filter )
+    void graphviz( GraphvizWriter gv, String filter ) throws IOException
     {
-        gv.println( "digraph ThreadsAndLocks {" );
-        gv.println( "  label=\"" + info + "\"" );
-        Set<ThreadData> included = new HashSet<ThreadData>();
+        gv.append( "digraph ThreadsAndLocks {\n" );
+        gv.append( "  label=\"" ).append( info ).append( "\"\n" );
+        FrameFilter frames = filter == null ? null : new FrameFilter( filter );
+        int[] nodes = gv.prune() ? prunedNodes() : null;
+        int[] counts = new int[threads.size()];
+        for ( int t = 0; t < counts.length; t++ )
+        {
+            counts[nodes == null ? t : nodes[t]]++;
+        }
+        boolean[] included = new boolean[threads.size()];
+        int index = 0;
         for ( ThreadData thread : threads )
         {
-            if ( !thread.isSystemThread() && thread.matches( filter ) )
+            if ( counts[index] > 0 && !thread.isSystemThread() && ( frames == null || thread.matches( frames ) ) )
             {
-                thread.graphviz( gv );
-                included.add( thread );
+                thread.graphviz( gv, counts[index] );
+                included[index] = true;
             }
+            index++;
         }
-        Set<ThreadData> extra = new HashSet<ThreadData>();
-        for ( MonitorState monitor : monitors.values() )
+        boolean[] extra = locks().graphviz( gv, included, nodes );
+        for ( int t = 0; t < extra.length; t++ )
         {
-            extra.addAll( monitor.graphviz( gv, included ) );
+            if ( extra[t] ) locks().thread( t ).graphviz( gv, counts[t] );
         }
-        for ( ThreadData thread : extra )
+        gv.append( "}\n" );
+    }
+
+    /**
+     * @return for each thread, the first thread in the same state with the
+     *         same stack if the thread waits on a monitor (the stack then ends
+     *         in the same monitor), otherwise the thread itself.
+     */
+    private int[] prunedNodes()
+    {
+        int[] nodes = new int[threads.size()];
+        Map<StackTrie.Node, Integer> first = new HashMap<StackTrie.Node, Integer>();
+        int index = 0;
+        for ( ThreadData thread : threads )
         {
-            thread.graphviz( gv );
+            nodes[index] = index;
+            if ( thread.isWaiting() )
+            {
+                Integer node = first.get( thread.stack() );
+                if ( node == null ) first.put( thread.stack(), index );
+                else if ( locks().thread( node ).state() == thread.state() ) nodes[index] = node;
+            }
+            index++;
         }
-        gv.println( "}" );
+        return nodes;
     }
 
     public void print( PrintStream out )
@@ -102,11 +216,103 @@ public class ThreadDump implements Iterable<ThreadData>
         }
     }
 
-    public void printLocks( PrintStream out )
+    /**
+     * Groups the threads of this dump that have identical stacks and are in the
+     * same state, with the largest groups first.
+     */
+    public List<StackGroup> groupByStack()
     {
-        for ( MonitorState monitor : monitors.values() )
+        Map<StackTrie.Node, StackGroup[]> byStack = new HashMap<StackTrie.Node, StackGroup[]>();
+        List<StackGroup> groups = new ArrayList<StackGroup>();
+        for ( ThreadData thread : threads )
         {
-            monitor.print( out, threads );
+            StackGroup[] byState = byStack.get( thread.stack() );
+            if ( byState == null )
+            {
+                byStack.put( thread.stack(), byState = new StackGroup[STATES.length + 1] );
+            }
+            int slot = thread.state() == null ? 0 : thread.state().ordinal() + 1;
+            if ( byState[slot] == null )
+            {
+                groups.add( byState[slot] = new StackGroup( thread.stack(), thread.state() ) );
+            }
+            byState[slot].threads.add( thread );
+        }
+        Collections.sort( groups );
+        return groups;
+    }
+
+    public static final class StackGroup implements Comparable<StackGroup>
+    {
+        private final StackTrie.Node stack;
+        private final Thread.State state;
+        private final List<ThreadData> threads = new ArrayList<ThreadData>();
+
+        StackGroup( StackTrie.Node stack, Thread.State state )
+        {
+            this.stack = stack;
+            this.state = state;
+        }
+
+        public int count()
+        {
+            return threads.size();
+        }
+
+        public Thread.State state()
+        {
+            return state;
+        }
+
+        public List<ThreadData> threads()
+        {
+            return threads;
+        }
+
+        public int compareTo( StackGroup that )
+        {
+            return that.count() - this.count();
         }
+
+        @Override
+        public String toString()
+        {
+            return count() + " threads in " + state;
+        }
+
+        public void print( PrintStream out )
+        {
+            out.println( this );
+            for ( StackTrie.Node node = stack; node.parent != null; node = node.parent )
+            {
+                node.element.print( out );
+            }
+        }
+    }
+
+    void snapshot( SnapshotWriter out ) throws IOException
+    {
+        out.writeString( date );
+        out.writeString( info );
+        out.writeVarint( threads.size() );
+        for ( ThreadData thread : threads )
+        {
+            thread.snapshot( out );
+        }
+        locks().snapshot( out );
+    }
+
+    public void printLocks( PrintStream out )
+    {
+        locks().print( out );
+    }
+
+    /**
+     * Prints the deadlocks in this dump, and the threads that other threads are
+     * (transitively) blocked behind.
+     */
+    public void printBlocking( PrintStream out )
+    {
+        new WaitForGraph( locks() ).print( out );
     }
 }
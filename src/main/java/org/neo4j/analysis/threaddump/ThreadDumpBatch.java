@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyzes many thread dump files concurrently, for
+ * <code>ThreadDumpFile --batch</code>. Files are parsed on a fixed number of
+ * threads, each writing the report of its file as it goes. The graphviz file
+ * of each dump is written by a separate task, on a virtual thread where the
+ * runtime has them, and at most a bounded number of dumps wait to be written
+ * at any time, so memory use does not depend on how many files there are.
+ *
+ * The output of the n:th input file is written to its own directory, named
+ * from n and the name of the file, with one graphviz file per dump named from
+ * its number in the file and its date. Nothing depends on which file finishes
+ * first, so the output paths are the same in every run.
+ */
+final class ThreadDumpBatch
+{
+    private final File output;
+    private final int maxDepth;
+    private final boolean prune;
+    private final PrintStream progress;
+    private final ExecutorService parsers, writers;
+    /** Permits for dumps that wait to be written, taken before a dump is handed to a writer. */
+    private final Semaphore pending;
+    private final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger(),
+            unwritten = new AtomicInteger();
+    private final AtomicLong dumps = new AtomicLong();
+    private int total;
+
+    ThreadDumpBatch( File output, int threads, int maxDepth, boolean prune, PrintStream progress )
+    {
+        this.output = output;
+        this.maxDepth = maxDepth;
+        this.prune = prune;
+        this.progress = progress;
+        this.parsers = Executors.newFixedThreadPool( threads, daemon( "thread-dump-batch-" ) );
+        this.writers = writers( threads );
+        this.pending = new Semaphore( threads * 4 );
+    }
+
+    static ThreadFactory daemon( final String prefix )
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory()
+        {
+            public Thread newThread( Runnable task )
+            {
+                Thread thread = new Thread( task, prefix + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Writes go to virtual threads when the runtime has them (Java 21 and
+     * later), looked up reflectively so that this builds for older releases.
+     * Otherwise a fixed pool of platform threads, larger than the number of
+     * parsers since writers mostly wait on the disk.
+     */
+    private static ExecutorService writers( int threads )
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch ( Exception e )
+        {
+            return Executors.newFixedThreadPool( threads * 4, daemon( "thread-dump-writer-" ) );
+        }
+    }
+
+    /**
+     * Analyzes the given files, and the files in the given directories.
+     *
+     * @return the number of files that could not be analyzed, plus the number
+     *         of graphviz files that could not be written.
+     */
+    int run( List<File> inputs ) throws InterruptedException
+    {
+        List<File> files = new ArrayList<File>();
+        for ( File input : inputs )
+        {
+            collect( input, files );
+        }
+        total = files.size();
+        String format = "%0" + Integer.toString( Math.max( 1, total - 1 ) ).length() + "d-%s";
+        for ( int i = 0; i < files.size(); i++ )
+        {
+            final File file = files.get( i );
+            final File directory = new File( output, String.format( format, i, file.getName() ) );
+            parsers.execute( new Runnable()
+            {
+                public void run()
+                {
+                    analyze( file, directory );
+                }
+            } );
+        }
+        parsers.shutdown();
+        parsers.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        writers.shutdown();
+        writers.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        progress.println( "Analyzed " + ( total - failed.get() ) + " of " + total + " files, " + dumps.get()
+                          + " dumps, into " + output );
+        if ( unwritten.get() != 0 ) progress.println( unwritten.get() + " graphviz files could not be written" );
+        return failed.get() + unwritten.get();
+    }
+
+    private static void collect( File file, List<File> files )
+    {
+        if ( file.isDirectory() )
+        {
+            File[] children = file.listFiles();
+            if ( children == null ) return;
+            Arrays.sort( children );
+            for ( File child : children )
+            {
+                collect( child, files );
+            }
+        }
+        else
+        {
+            files.add( file );
+        }
+    }
+
+    private void analyze( File file, File directory )
+    {
+        int count = 0;
+        try
+        {
+            if ( !directory.isDirectory() && !directory.mkdirs() )
+            {
+                throw new IOException( "Could not create " + directory );
+            }
+            // archives are inflated on a thread of their own, the parsers already use all cores
+            Iterator<ThreadDump> dumps = ArchiveThreadDumpFile.isArchive( file ) ? new ArchiveThreadDumpFile( file, 1 )
+                    : JsonThreadDumpFile.isJson( file ) ? new JsonThreadDumpFile( file )
+                    : new MappedThreadDumpFile( file );
+            PrintStream report = new PrintStream( new BufferedOutputStream(
+                    new FileOutputStream( new File( directory, "report.txt" ) ), 64 * 1024 ) );
+            try
+            {
+                while ( dumps.hasNext() )
+                {
+                    ThreadDump dump = dumps.next();
+                    report.println( dump );
+                    dump.printLocks( report );
+                    dump.printBlocking( report );
+                    report.println();
+                    write( dump, new File( directory, String.format( "%05d-%s", count++, dump.graphvizName() ) ) );
+                }
+            }
+            finally
+            {
+                report.close();
+                ( (Closeable) dumps ).close();
+            }
+            if ( report.checkError() ) throw new IOException( "Could not write the report of " + file );
+            this.dumps.addAndGet( count );
+            progress.println( "[" + done.incrementAndGet() + "/" + total + "] " + file + ": " + count + " dumps" );
+        }
+        catch ( Exception e )
+        {
+            if ( e instanceof UncheckedIOException ) e = ( (UncheckedIOException) e ).getCause();
+            failed.incrementAndGet();
+            progress.println( "[" + done.incrementAndGet() + "/" + total + "] " + file + ": failed after " + count
+                              + " dumps: " + e );
+        }
+    }
+
+    /** Blocks while too many dumps wait to be written. */
+    private void write( final ThreadDump dump, final File file ) throws InterruptedException
+    {
+        pending.acquire();
+        writers.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    dump.writeGraphvizFile( file, "neo4j", maxDepth, prune );
+                }
+                catch ( Exception e )
+                {
+                    unwritten.incrementAndGet();
+                    progress.println( "Could not write " + file + ": " + e );
+                }
+                finally
+                {
+                    pending.release();
+                }
+            }
+        } );
+    }
+}
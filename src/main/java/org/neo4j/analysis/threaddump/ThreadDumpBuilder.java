@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Builds {@link ThreadDump}s from the events of a {@link ThreadDumpParser}.
+ */
+final class ThreadDumpBuilder implements ThreadDumpVisitor
+{
+    private final StackTrie stacks;
+    private final List<StackElement> stack = new ArrayList<StackElement>();
+    private String[] header;
+    private List<ThreadData> threads;
+    private String info, stateComment;
+    private Thread.State state;
+    private ThreadData.RawStack raw;
+    private ThreadDump dump;
+
+    ThreadDumpBuilder( StackTrie stacks )
+    {
+        this.stacks = stacks;
+    }
+
+    /** @return the last dump that was built, once. */
+    ThreadDump dump()
+    {
+        try
+        {
+            return dump;
+        }
+        finally
+        {
+            dump = null;
+        }
+    }
+
+    public void onDumpStart( String[] header )
+    {
+        this.header = header;
+        this.threads = new ArrayList<ThreadData>();
+    }
+
+    public void onThread( String info, Thread.State state, String stateComment )
+    {
+        this.info = info;
+        this.state = state;
+        this.stateComment = stateComment;
+        this.raw = null;
+        stack.clear();
+    }
+
+    /**
+     * Gives the stack of the current thread undecoded, instead of as
+     * elements.
+     */
+    void onStack( ThreadData.RawStack raw )
+    {
+        this.raw = raw;
+    }
+
+    public void onFrame( MethodEntry frame )
+    {
+        stack.add( frame );
+    }
+
+    public void onLock( LockMonitor lock )
+    {
+        stack.add( lock );
+    }
+
+    public void onWait( WaitMonitor wait )
+    {
+        stack.add( wait );
+    }
+
+    public void onThreadEnd()
+    {
+        if ( raw != null )
+        {
+            // elements after a raw stack are the ownable synchronizers that follow it
+            if ( !stack.isEmpty() ) raw.own( stack.toArray( new StackElement[stack.size()] ) );
+            threads.add( new ThreadData( info, state, stateComment, raw ) );
+            raw = null;
+            return;
+        }
+        threads.add( new ThreadData( info, state, stateComment,
+                stacks.insert( stack.toArray( new StackElement[stack.size()] ) ) ) );
+    }
+
+    public void onDumpEnd()
+    {
+        dump = new ThreadDump( header, threads );
+        threads = null;
+    }
+}
@@ -30,15 +30,22 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+/**
+ * Reads thread dumps from a character stream. The chunks of the stream are
+ * given to a {@link ThreadDumpParser}, and the dumps are built from its
+ * events by a {@link ThreadDumpBuilder}, like for the other readers.
+ */
 public class ThreadDumpFile implements Iterator<ThreadDump>
 {
-    private final BufferedReader input;
+    private final ThreadDumpParser parser;
+    private final ThreadDumpBuilder builder;
     private ThreadDump next;
-    private String[] dumpChunk = {};
 
     public ThreadDumpFile( BufferedReader bufferedInputStream )
     {
-        this.input = bufferedInputStream;
+        StackTrie stacks = new StackTrie();
+        this.parser = new ThreadDumpParser( new ReaderChunkSource( bufferedInputStream ), new FrameTable(), stacks );
+        this.builder = new ThreadDumpBuilder( stacks );
     }
 
     public ThreadDumpFile( File input ) throws FileNotFoundException
@@ -47,64 +54,13 @@ public class ThreadDumpFile implements Iterator<ThreadDump>
     }
 
     private ThreadDump loadNext()
-    {
-        if ( dumpChunk == null ) return null;
-        List<ThreadData> dump = new ArrayList<ThreadData>();
-        String[] header = null;
-        while ( dumpChunk != null && dump.isEmpty() )
-        {
-            for ( String[] chunk = dumpChunk; chunk != null; chunk = readChunk() )
-            {
-                if ( chunk.length != 0 )
-                {
-                    if ( isHeaderChunk( chunk ) )
-                    {
-                        header = chunk;
-                    }
-                    else
-                    {
-                        ThreadData data = ThreadData.readFrom( chunk );
-                        if ( data != null ) dump.add( data );
-                    }
-                }
-            }
-        }
-        if ( dump.isEmpty() ) return null;
-        return new ThreadDump( header, dump );
-    }
-
-    private String[] readChunk()
-    {
-        List<String> result = new ArrayList<String>();
-        String line;
-        while ( ( line = readLine() ) != null )
-        {
-            line = line.trim();
-            if ( line.equals( "" ) ) break;
-            result.add( line );
-        }
-        dumpChunk = ( line == null ) ? null : result.toArray( new String[result.size()] );
-        if ( dumpChunk == null || isHeaderChunk( dumpChunk ) ) return null;
-        return dumpChunk;
-    }
-
-    private boolean isHeaderChunk( String[] chunk )
-    {
-        if ( chunk.length == 2 )
-        {
-            if ( chunk[1].startsWith( "Full thread dump" ) )
-            {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private String readLine()
     {
         try
         {
-            return input.readLine();
+            long allocated = ParseStatistics.allocated();
+            ThreadDump dump = parser.next( builder ) ? builder.dump() : null;
+            if ( dump != null ) ParseStatistics.dump( allocated );
+            return dump;
         }
         catch ( IOException e )
         {
@@ -145,18 +101,66 @@ public class ThreadDumpFile implements Iterator<ThreadDump>
 
     public static void main( String... args ) throws Exception
     {
-        for ( String filename : args )
+        boolean parallel = false, prune = false, stats = false;
+        int depth = GraphvizWriter.ALL_FRAMES;
+        File batch = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> inputs = new ArrayList<File>();
+        for ( int i = 0; i < args.length; i++ )
         {
+            String filename = args[i];
+            if ( "--batch".equals( filename ) && i + 1 < args.length )
+            {
+                batch = new File( args[++i] );
+                continue;
+            }
+            if ( "--threads".equals( filename ) && i + 1 < args.length )
+            {
+                threads = Integer.parseInt( args[++i] );
+                continue;
+            }
+            if ( "--parallel".equals( filename ) )
+            {
+                parallel = true;
+                continue;
+            }
+            if ( "--stats".equals( filename ) )
+            {
+                stats = true;
+                ParseStatistics.enable( true );
+                ParseStatistics.register();
+                continue;
+            }
+            if ( "--prune".equals( filename ) )
+            {
+                prune = true;
+                continue;
+            }
+            if ( "--depth".equals( filename ) && i + 1 < args.length )
+            {
+                depth = Integer.parseInt( args[++i] );
+                continue;
+            }
+            if ( batch != null )
+            {
+                inputs.add( new File( filename ) );
+                continue;
+            }
             try
             {
-                Iterator<ThreadDump> dumps = new ThreadDumpFile( new File( filename ) );
+                File file = new File( filename );
+                Iterator<ThreadDump> dumps = ArchiveThreadDumpFile.isArchive( file )
+                        ? new ArchiveThreadDumpFile( file, threads )
+                        : JsonThreadDumpFile.isJson( file ) ? new JsonThreadDumpFile( file )
+                        : parallel ? new ParallelThreadDumpFile( file ) : new ThreadDumpFile( file );
                 File dir = new File( "." ).getAbsoluteFile();
                 while ( dumps.hasNext() )
                 {
                     ThreadDump dump = dumps.next();
                     System.out.println( dump );
                     dump.printLocks( System.out );
-                    dump.dumpGraphvizFile( dir, "neo4j" );
+                    dump.printBlocking( System.out );
+                    dump.dumpGraphvizFile( dir, "neo4j", depth, prune );
                     System.out.println();
                 }
             }
@@ -165,5 +169,12 @@ public class ThreadDumpFile implements Iterator<ThreadDump>
                 System.err.println( e );
             }
         }
+        int failures = 0;
+        if ( batch != null )
+        {
+            failures = new ThreadDumpBatch( batch, threads, depth, prune, System.err ).run( inputs );
+        }
+        if ( stats ) ParseStatistics.print( System.out );
+        if ( failures != 0 ) System.exit( 1 );
     }
 }
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows a log that thread dumps are appended to, like <code>tail -f</code>.
+ * Each {@link #poll()} only reads the bytes that were appended since the last
+ * one, from the offset where the last complete chunk ended. A dump is
+ * complete as soon as the line that HotSpot ends the list of threads with is
+ * read, or when the header of the next dump is read. Dumps without that line
+ * are completed when the caller decides that the log has been quiet for long
+ * enough and calls {@link #flush()}.
+ *
+ * If the log is truncated it is read again from the start, and if it is
+ * replaced by a new file (rotated) the rest of the old file is read before
+ * following the new one.
+ */
+public class ThreadDumpFollower implements Closeable
+{
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final FrameTable frames = new FrameTable();
+    private final StackTrie stacks = new StackTrie();
+    private final ThreadDumpParser parser = new ThreadDumpParser( null, frames );
+    private final ThreadDumpBuilder builder = new ThreadDumpBuilder( stacks );
+    private final ByteChunk chunk = new ByteChunk();
+    private ByteBuffer buffer = ByteBuffer.allocate( READ_SIZE );
+    private FileChannel channel;
+    private Object fileKey;
+    /** The position of the first byte that is not part of a complete chunk. */
+    private long offset;
+
+    public ThreadDumpFollower( File file ) throws IOException
+    {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException
+    {
+        channel = new RandomAccessFile( file, "r" ).getChannel();
+        fileKey = fileKey();
+        offset = 0;
+    }
+
+    private Object fileKey() throws IOException
+    {
+        return Files.readAttributes( file.toPath(), BasicFileAttributes.class ).fileKey();
+    }
+
+    /** @return the position in the current file up to which it has been read. */
+    public long offset()
+    {
+        return offset;
+    }
+
+    /**
+     * Reads what has been appended to the log since the last call.
+     *
+     * @return the dumps that were completed by it.
+     */
+    public List<ThreadDump> poll() throws IOException
+    {
+        List<ThreadDump> dumps = new ArrayList<ThreadDump>();
+        long size = channel.size();
+        if ( size < offset )
+        {
+            // truncated, the partial chunk that was not read yet is gone
+            end( dumps );
+            offset = 0;
+        }
+        read( size, false, dumps );
+        if ( isRotated() )
+        {
+            read( channel.size(), true, dumps );
+            end( dumps );
+            channel.close();
+            open();
+            read( channel.size(), false, dumps );
+        }
+        return dumps;
+    }
+
+    /**
+     * Reads the rest of the log, including a trailing chunk that is not
+     * followed by a blank line yet, and ends the dump that is being read, as
+     * if the log had ended here.
+     *
+     * @return the dumps that were completed by it.
+     */
+    public List<ThreadDump> flush() throws IOException
+    {
+        List<ThreadDump> dumps = new ArrayList<ThreadDump>();
+        read( channel.size(), true, dumps );
+        end( dumps );
+        return dumps;
+    }
+
+    private void end( List<ThreadDump> dumps )
+    {
+        if ( parser.end( builder ) ) dumps.add( builder.dump() );
+    }
+
+    private boolean isRotated()
+    {
+        try
+        {
+            Object key = fileKey();
+            return key != null && !key.equals( fileKey );
+        }
+        catch ( IOException e )
+        {
+            return false; // not there (yet), keep reading the old file
+        }
+    }
+
+    /**
+     * Parses the chunks between {@link #offset} and <code>size</code>, and
+     * moves the offset past them. A trailing chunk that is not followed by a
+     * blank line is left for the next read, unless <code>all</code> is set.
+     */
+    private void read( long size, boolean all, List<ThreadDump> dumps ) throws IOException
+    {
+        while ( offset < size )
+        {
+            buffer.clear();
+            if ( size - offset < buffer.capacity() ) buffer.limit( (int) ( size - offset ) );
+            while ( buffer.hasRemaining() && channel.read( buffer, offset + buffer.position() ) >= 0 )
+            {
+                // fill the buffer
+            }
+            buffer.flip();
+            boolean whole = offset + buffer.limit() >= size;
+            ChunkScanner scanner = new ChunkScanner( buffer );
+            int consumed = 0;
+            boolean partial = false;
+            while ( scanner.next( chunk ) )
+            {
+                if ( !chunk.isTerminated() && !( all && whole ) && !isEndLine( chunk ) )
+                {
+                    partial = true;
+                    break;
+                }
+                parser.feed( chunk, builder );
+                ThreadDump dump = builder.dump();
+                if ( dump != null ) dumps.add( dump );
+                consumed = scanner.position();
+            }
+            if ( !partial ) consumed = buffer.limit();
+            if ( consumed == 0 )
+            {
+                if ( whole ) return; // wait for the rest of the chunk
+                // a single chunk that does not fit in the buffer
+                buffer = ByteBuffer.allocate( buffer.capacity() * 2 );
+                continue;
+            }
+            offset += consumed;
+            if ( partial && whole ) return;
+        }
+    }
+
+    /**
+     * The line that ends a dump is a chunk of its own, so it is complete as
+     * soon as the line is, without waiting for the blank line that follows.
+     */
+    private boolean isEndLine( ByteChunk chunk )
+    {
+        return chunk.size() == 1 && ThreadDumpParser.isDumpEnd( chunk ) && buffer.get( buffer.limit() - 1 ) == '\n';
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        long interval = 500, idle = 2000;
+        int i = 0;
+        for ( ; i + 1 < args.length && args[i].startsWith( "--" ); i += 2 )
+        {
+            if ( "--interval".equals( args[i] ) ) interval = Long.parseLong( args[i + 1] );
+            else if ( "--idle".equals( args[i] ) ) idle = Long.parseLong( args[i + 1] );
+            else break;
+        }
+        if ( i != args.length - 1 )
+        {
+            System.err.println( "usage: ThreadDumpFollower [--interval ms] [--idle ms] <dump log>" );
+            System.exit( 1 );
+        }
+        ThreadDumpFollower follower = new ThreadDumpFollower( new File( args[i] ) );
+        try
+        {
+            long lastChange = System.currentTimeMillis(), lastOffset = -1;
+            for ( ;; )
+            {
+                List<ThreadDump> dumps = follower.poll();
+                if ( follower.offset() != lastOffset || !dumps.isEmpty() )
+                {
+                    lastOffset = follower.offset();
+                    lastChange = System.currentTimeMillis();
+                }
+                else if ( System.currentTimeMillis() - lastChange >= idle )
+                {
+                    // nothing has been written for a while, the last dump is complete
+                    dumps = follower.flush();
+                    lastChange = Long.MAX_VALUE / 2;
+                }
+                for ( ThreadDump dump : dumps )
+                {
+                    System.out.println( dump );
+                    dump.printBlocking( System.out );
+                    System.out.println();
+                }
+                Thread.sleep( interval );
+            }
+        }
+        finally
+        {
+            follower.close();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Parses the chunks of a thread dump log into the events of a
+ * {@link ThreadDumpVisitor}. Nothing is retained between events except for
+ * the interned frames, so the memory used does not depend on the size of the
+ * log.
+ */
+public class ThreadDumpParser
+{
+    static final String STATE_PREFIX = "java.lang.Thread.State:";
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final ChunkSource chunks;
+    private final FrameTable frames;
+    private final StackTrie lazyStacks;
+    private final ByteChunk chunk = new ByteChunk();
+    private String[] header;
+    private boolean fed;
+    /** If the last thread is not ended yet, since a list of the synchronizers it owns may follow. */
+    private boolean open;
+
+    ThreadDumpParser( ChunkSource chunks, FrameTable frames )
+    {
+        this( chunks, frames, null );
+    }
+
+    /**
+     * Creates a parser that leaves the stacks of the threads it gives to a
+     * {@link ThreadDumpBuilder} undecoded until they are used, with
+     * <code>lazyStacks</code> as the trie they are then inserted in. The
+     * chunks of the source must stay valid for as long as the dumps are used,
+     * which is the case for mapped files that don't change.
+     */
+    ThreadDumpParser( ChunkSource chunks, FrameTable frames, StackTrie lazyStacks )
+    {
+        this.chunks = chunks;
+        this.frames = frames;
+        this.lazyStacks = lazyStacks;
+    }
+
+    /**
+     * Parses all thread dumps in the given file.
+     */
+    public static void parse( File file, ThreadDumpVisitor visitor ) throws IOException
+    {
+        FileChannel channel = new RandomAccessFile( file, "r" ).getChannel();
+        try
+        {
+            new ThreadDumpParser( new MappedChunkSource( channel, 0, channel.size() ), new FrameTable() )
+                    .parse( visitor );
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    void parse( ThreadDumpVisitor visitor ) throws IOException
+    {
+        while ( next( visitor ) )
+        {
+            // keep going
+        }
+    }
+
+    /**
+     * Parses the next thread dump. A dump starts at a header chunk, or at the
+     * beginning of the log, and only counts if it contains any threads.
+     *
+     * @return <code>false</code> if there were no more dumps.
+     */
+    boolean next( ThreadDumpVisitor visitor ) throws IOException
+    {
+        String[] header = this.header;
+        this.header = null;
+        boolean started = false;
+        for ( long start = ParseStatistics.start(); chunks.next( chunk ); start = ParseStatistics.start() )
+        {
+            ParseStatistics.chunking( start );
+            ParseStatistics.chunk();
+            ParseStatistics.bytes( chunk.end() - chunk.start() );
+            if ( chunk.isHeader() )
+            {
+                if ( started )
+                {
+                    this.header = chunk.strings();
+                    break;
+                }
+                header = chunk.strings();
+            }
+            else if ( isThread( chunk ) )
+            {
+                if ( !started )
+                {
+                    visitor.onDumpStart( header );
+                    started = true;
+                }
+                thread( visitor, chunk );
+            }
+            else if ( !owned( visitor, chunk ) )
+            {
+                ParseStatistics.skipped();
+            }
+        }
+        if ( started )
+        {
+            endThread( visitor );
+            visitor.onDumpEnd();
+        }
+        return started;
+    }
+
+    /**
+     * Parses a chunk that was read by the caller, for logs that are read as
+     * they grow. A header chunk, or the {@linkplain #isDumpEnd(ByteChunk)
+     * line} that HotSpot ends the list of threads with, ends the current
+     * dump. A dump that is not ended so is ended by
+     * {@link #end(ThreadDumpVisitor)}.
+     */
+    void feed( ByteChunk chunk, ThreadDumpVisitor visitor )
+    {
+        ParseStatistics.chunk();
+        ParseStatistics.bytes( chunk.end() - chunk.start() );
+        if ( chunk.isHeader() )
+        {
+            end( visitor );
+            header = chunk.strings();
+        }
+        else if ( isThread( chunk ) )
+        {
+            if ( !fed )
+            {
+                visitor.onDumpStart( header );
+                header = null;
+                fed = true;
+            }
+            thread( visitor, chunk );
+        }
+        else if ( isDumpEnd( chunk ) )
+        {
+            end( visitor );
+        }
+        else if ( !owned( visitor, chunk ) )
+        {
+            ParseStatistics.skipped();
+        }
+    }
+
+    /**
+     * HotSpot ends the list of threads of a dump with the number of JNI
+     * global references, <code>JNI global references: 1234</code>, or
+     * <code>JNI global refs: 16, weak refs: 0</code> since JDK 11.
+     */
+    static boolean isDumpEnd( ByteChunk chunk )
+    {
+        return chunk.startsWith( 0, "JNI global ref" );
+    }
+
+    /**
+     * Ends the dump of the chunks that were fed so far.
+     *
+     * @return <code>false</code> if there was no dump, since no threads have
+     *         been fed since the last dump ended.
+     */
+    boolean end( ThreadDumpVisitor visitor )
+    {
+        if ( !fed ) return false;
+        fed = false;
+        endThread( visitor );
+        visitor.onDumpEnd();
+        return true;
+    }
+
+    /**
+     * A thread chunk starts with the quoted name of the thread. The threads
+     * of the deadlock report are only referred to by name,
+     * <code>"name":</code>, and are not threads of the dump.
+     */
+    static boolean isThread( ByteChunk chunk )
+    {
+        int length = chunk.length( 0 );
+        return chunk.startsWith( 0, "\"" )
+               && !( length > 2 && chunk.byteAt( 0, length - 1 ) == ':' && chunk.byteAt( 0, length - 2 ) == '"' );
+    }
+
+    /**
+     * Parses the list of ownable synchronizers that <code>jstack -l</code>
+     * prints after each thread, as locks at the bottom of the stack of the
+     * last thread.
+     *
+     * @return <code>false</code> if the chunk was not such a list.
+     */
+    private boolean owned( ThreadDumpVisitor visitor, ByteChunk chunk )
+    {
+        if ( !open || !chunk.startsWith( 0, StackElement.IGNORED[0] ) ) return false;
+        for ( int line = 1; line < chunk.size(); line++ )
+        {
+            StackElement element = element( chunk, line, frames );
+            if ( element instanceof LockMonitor ) visitor.onLock( (LockMonitor) element );
+            else if ( element != null ) throw new IllegalArgumentException( chunk.string( line ) );
+        }
+        endThread( visitor );
+        return true;
+    }
+
+    private void endThread( ThreadDumpVisitor visitor )
+    {
+        if ( !open ) return;
+        open = false;
+        visitor.onThreadEnd();
+    }
+
+    private void thread( ThreadDumpVisitor visitor, ByteChunk chunk )
+    {
+        endThread( visitor );
+        long start = ParseStatistics.start();
+        try
+        {
+            parseThread( visitor, chunk );
+            ParseStatistics.thread();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            ParseStatistics.unparseable();
+            throw e;
+        }
+        ParseStatistics.threadParsed( start );
+    }
+
+    private void parseThread( ThreadDumpVisitor visitor, ByteChunk chunk )
+    {
+        Thread.State state = null;
+        String stateComment = null;
+        int i = 1;
+        if ( chunk.size() > 1 && chunk.startsWith( i, STATE_PREFIX ) )
+        {
+            int start = chunk.skipWhitespace( i, STATE_PREFIX.length() );
+            int end = chunk.indexOf( i, start, ' ' );
+            if ( end == -1 ) end = chunk.length( i );
+            state = state( chunk, i, start, end );
+            if ( end < chunk.length( i ) ) stateComment = chunk.string( i, chunk.skipWhitespace( i, end + 1 ) );
+            i++;
+        }
+        visitor.onThread( chunk.string( 0 ), state, stateComment );
+        if ( lazyStacks != null && visitor instanceof ThreadDumpBuilder )
+        {
+            if ( i < chunk.size() )
+            {
+                ( (ThreadDumpBuilder) visitor ).onStack( new BytesStack( chunk, i, frames, lazyStacks ) );
+            }
+        }
+        else
+        {
+            for ( ; i < chunk.size(); i++ )
+            {
+                StackElement element = element( chunk, i, frames );
+                if ( element == null ) continue;
+                if ( element instanceof MethodEntry )
+                {
+                    visitor.onFrame( (MethodEntry) element );
+                }
+                else if ( element instanceof LockMonitor )
+                {
+                    visitor.onLock( (LockMonitor) element );
+                }
+                else
+                {
+                    visitor.onWait( (WaitMonitor) element );
+                }
+            }
+        }
+        open = true;
+    }
+
+    static Thread.State state( ByteChunk chunk, int line, int start, int end )
+    {
+        for ( Thread.State state : STATES )
+        {
+            if ( state.name().length() == end - start && chunk.regionMatches( line, start, state.name() ) )
+            {
+                return state;
+            }
+        }
+        throw new IllegalArgumentException( chunk.string( line ) );
+    }
+
+    /**
+     * @return the element of a line of a stack, or <code>null</code> for the
+     *         lines that carry nothing that is kept: the header of the list
+     *         of ownable synchronizers and its "None", the current task of
+     *         compiler threads, and locks that the JIT eliminated.
+     */
+    static StackElement element( ByteChunk chunk, int line, FrameTable frames )
+    {
+        if ( chunk.startsWith( line, "at" ) )
+        {
+            ParseStatistics.frame();
+            return frames.intern( chunk, line, 3 );
+        }
+        else if ( chunk.startsWith( line, "-" ) )
+        {
+            if ( chunk.regionMatches( line, 2, "<" ) )
+            {
+                ParseStatistics.monitor();
+                return new LockMonitor( StackElement.OWNABLE + chunk.string( line, 2 ) );
+            }
+            else if ( ( chunk.length( line ) == 6 && chunk.regionMatches( line, 2, "None" ) )
+                      || chunk.regionMatches( line, 2, "eliminated" ) )
+            {
+                return null;
+            }
+            else if ( chunk.regionMatches( line, 2, "lock" ) )
+            {
+                ParseStatistics.monitor();
+                return new LockMonitor( chunk.string( line, 2 ) );
+            }
+            else if ( chunk.regionMatches( line, 2, "park" ) || chunk.regionMatches( line, 2, "wait" ) )
+            {
+                ParseStatistics.monitor();
+                return new WaitMonitor( chunk.string( line, 2 ) );
+            }
+        }
+        else
+        {
+            for ( String ignored : StackElement.IGNORED )
+            {
+                if ( chunk.startsWith( line, ignored ) ) return null;
+            }
+        }
+        throw new IllegalArgumentException( chunk.string( line ) );
+    }
+
+    /**
+     * The stack lines of a thread, as line ranges into the buffer of the
+     * chunk they were read from.
+     */
+    private static final class BytesStack extends ThreadData.RawStack
+    {
+        private final ByteBuffer buffer;
+        private final int[] bounds;
+        private final FrameTable frames;
+
+        BytesStack( ByteChunk chunk, int from, FrameTable frames, StackTrie stacks )
+        {
+            super( stacks );
+            this.buffer = chunk.buffer();
+            this.bounds = new int[( chunk.size() - from ) * 2];
+            for ( int i = 0, line = from; line < chunk.size(); line++ )
+            {
+                bounds[i++] = chunk.lineStart( line );
+                bounds[i++] = chunk.lineEnd( line );
+            }
+            this.frames = frames;
+        }
+
+        @Override
+        StackElement[] elements()
+        {
+            ByteChunk chunk = new ByteChunk();
+            chunk.reset( buffer, bounds[0] );
+            for ( int i = 0; i < bounds.length; i += 2 )
+            {
+                chunk.add( bounds[i], bounds[i + 1] );
+            }
+            StackElement[] stack = new StackElement[chunk.size()];
+            try
+            {
+                for ( int line = 0; line < stack.length; line++ )
+                {
+                    stack[line] = element( chunk, line, frames );
+                }
+            }
+            catch ( IllegalArgumentException e )
+            {
+                ParseStatistics.unparseable();
+                throw e;
+            }
+            return stack;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Receives the contents of thread dumps as they are parsed by a
+ * {@link ThreadDumpParser}, without any {@link ThreadDump} being built.
+ *
+ * For each dump the events arrive in the order: {@link #onDumpStart(String[])},
+ * then for each thread {@link #onThread(String, Thread.State, String)}, the
+ * elements of its stack (top frame first) and {@link #onThreadEnd()}, and
+ * finally {@link #onDumpEnd()}.
+ */
+public interface ThreadDumpVisitor
+{
+    /**
+     * @param header the date and JVM info lines of the dump, or
+     *            <code>null</code> if the dump had no header.
+     */
+    void onDumpStart( String[] header );
+
+    /**
+     * @param state the state of the thread, or <code>null</code> for system
+     *            threads.
+     */
+    void onThread( String info, Thread.State state, String stateComment );
+
+    void onFrame( MethodEntry frame );
+
+    void onLock( LockMonitor lock );
+
+    void onWait( WaitMonitor wait );
+
+    void onThreadEnd();
+
+    void onDumpEnd();
+
+    /**
+     * A visitor that ignores all events, for visitors that are only
+     * interested in some of them.
+     */
+    public static class Adapter implements ThreadDumpVisitor
+    {
+        public void onDumpStart( String[] header )
+        {
+        }
+
+        public void onThread( String info, Thread.State state, String stateComment )
+        {
+        }
+
+        public void onFrame( MethodEntry frame )
+        {
+        }
+
+        public void onLock( LockMonitor lock )
+        {
+        }
+
+        public void onWait( WaitMonitor wait )
+        {
+        }
+
+        public void onThreadEnd()
+        {
+        }
+
+        public void onDumpEnd()
+        {
+        }
+    }
+}
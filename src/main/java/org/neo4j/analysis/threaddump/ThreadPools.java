@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Groups threads into pools by their names, with regular expression rules
+ * that rewrite a thread name into the name of its pool. The first rule that
+ * matches the whole name is used, names that no rule matches are pools of
+ * their own. Each distinct thread name is only rewritten once, pools are
+ * numbered densely in the order they are first seen.
+ */
+public class ThreadPools
+{
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<String> replacements = new ArrayList<String>();
+    private final Map<String, Integer> byThread = new HashMap<String, Integer>();
+    private final Map<String, Integer> byName = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * Adds the default rules, for executor threads
+     * (<code>pool-3-thread-117</code> is in <code>pool-3</code>), Jetty
+     * threads (<code>qtp123-456</code> is in <code>qtp123</code>), and names
+     * that end with a number.
+     */
+    public ThreadPools defaultRules()
+    {
+        return rule( "pool-(\\d+)-thread-\\d+", "pool-$1" )
+                .rule( "(qtp\\d+)-\\d+.*", "$1" )
+                .rule( "(.*?)[-_ #]*\\d+", "$1" );
+    }
+
+    /**
+     * Adds a rule, tried after the rules that were added before it.
+     *
+     * @param replacement the pool name, with <code>$n</code> for the groups
+     *            of the pattern.
+     */
+    public ThreadPools rule( String regex, String replacement )
+    {
+        patterns.add( Pattern.compile( regex ) );
+        replacements.add( replacement );
+        return this;
+    }
+
+    /** @return the number of the pool of the given thread. */
+    int pool( ThreadData thread )
+    {
+        Integer pool = byThread.get( thread.id );
+        if ( pool == null )
+        {
+            String name = name( thread.id.substring( 1, thread.id.length() - 1 ) );
+            pool = byName.get( name );
+            if ( pool == null )
+            {
+                byName.put( name, pool = names.size() );
+                names.add( name );
+            }
+            byThread.put( thread.id, pool );
+        }
+        return pool;
+    }
+
+    /** @return the name of the pool of a thread with the given name. */
+    public String name( String thread )
+    {
+        for ( int i = 0; i < patterns.size(); i++ )
+        {
+            Matcher matcher = patterns.get( i ).matcher( thread );
+            if ( matcher.matches() )
+            {
+                // replace the whole match, that the groups of matches() refer to
+                StringBuffer name = new StringBuffer();
+                matcher.appendReplacement( name, replacements.get( i ) );
+                return name.toString();
+            }
+        }
+        return thread;
+    }
+
+    /** @return the name of the pool with the given number. */
+    String name( int pool )
+    {
+        return names.get( pool );
+    }
+
+    /** @return the number of pools seen so far. */
+    int size()
+    {
+        return names.size();
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.analysis.threaddump.StackElement.LockMonitor;
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+import org.neo4j.analysis.threaddump.StackElement.WaitMonitor;
+
+/**
+ * Takes thread dumps of the running VM through {@link ThreadMXBean}, and
+ * converts them to {@link ThreadDump}s directly, without going through the
+ * text format. The last dumps are kept in a ring buffer, and the time spent
+ * taking and converting them is recorded, see {@link #printStatistics(PrintStream)}.
+ *
+ * Monitors are identified by their identity hash code, since the management
+ * API doesn't expose object addresses.
+ */
+public class ThreadSampler implements Closeable
+{
+    private final ThreadMXBean threads;
+    private final String header;
+    // replaced each time the ring wraps, so that they don't keep what only evicted dumps used, guarded by this
+    private FrameTable frames = new FrameTable();
+    private StackTrie stacks = new StackTrie();
+    private Map<StackTraceElement, MethodEntry> methods = new HashMap<StackTraceElement, MethodEntry>();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+    private final ThreadDump[] ring;
+    private int next, size;
+    private ScheduledExecutorService scheduler;
+    // statistics, guarded by this
+    private long samples, dumpNanos, convertNanos, maxNanos, cpuNanos, started, stopped;
+
+    public ThreadSampler( int capacity )
+    {
+        this( ManagementFactory.getThreadMXBean(), ManagementFactory.getRuntimeMXBean(), capacity );
+    }
+
+    ThreadSampler( ThreadMXBean threads, RuntimeMXBean runtime, int capacity )
+    {
+        this.threads = threads;
+        this.header = "Full thread dump " + runtime.getVmName() + " (" + runtime.getVmVersion() + "):";
+        this.ring = new ThreadDump[capacity];
+    }
+
+    /**
+     * Starts taking a dump every <code>period</code>, on a daemon thread.
+     */
+    public synchronized void start( long period, TimeUnit unit )
+    {
+        if ( scheduler != null ) throw new IllegalStateException( "Already started" );
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable task )
+            {
+                Thread thread = new Thread( task, "ThreadSampler" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        started = System.nanoTime();
+        stopped = 0;
+        scheduler.scheduleAtFixedRate( new Runnable()
+        {
+            public void run()
+            {
+                sample();
+            }
+        }, 0, period, unit );
+    }
+
+    public synchronized void close()
+    {
+        if ( scheduler == null ) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        stopped = System.nanoTime();
+    }
+
+    /** Takes a dump now, and adds it to the ring buffer. */
+    public ThreadDump sample()
+    {
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        long cpuStart = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+        long start = System.nanoTime();
+        ThreadInfo[] infos = threads.dumpAllThreads( threads.isObjectMonitorUsageSupported(),
+                threads.isSynchronizerUsageSupported() );
+        long dumped = System.nanoTime();
+        ThreadDump dump;
+        synchronized ( this )
+        {
+            dump = convert( infos );
+            long end = System.nanoTime();
+            samples++;
+            dumpNanos += dumped - start;
+            convertNanos += end - dumped;
+            maxNanos = Math.max( maxNanos, end - start );
+            if ( cpuTime ) cpuNanos += threads.getCurrentThreadCpuTime() - cpuStart;
+            ring[next] = dump;
+            next = ( next + 1 ) % ring.length;
+            size = Math.min( size + 1, ring.length );
+            if ( next == 0 )
+            {
+                // the dumps in the ring keep the nodes they use, the rest goes with the dumps that are evicted
+                frames = new FrameTable();
+                stacks = new StackTrie();
+                methods = new HashMap<StackTraceElement, MethodEntry>();
+            }
+        }
+        return dump;
+    }
+
+    /** @return the dumps in the ring buffer, oldest first. */
+    public synchronized List<ThreadDump> dumps()
+    {
+        List<ThreadDump> result = new ArrayList<ThreadDump>( size );
+        for ( int i = 0; i < size; i++ )
+        {
+            result.add( ring[( next - size + i + ring.length ) % ring.length] );
+        }
+        return result;
+    }
+
+    public synchronized void printStatistics( PrintStream out )
+    {
+        if ( samples == 0 )
+        {
+            out.println( "No samples" );
+            return;
+        }
+        out.printf( "%d samples, %.3f ms per sample (%.3f ms dumping, %.3f ms converting), max %.3f ms%n", samples,
+                ( dumpNanos + convertNanos ) / 1e6 / samples, dumpNanos / 1e6 / samples,
+                convertNanos / 1e6 / samples, maxNanos / 1e6 );
+        if ( cpuNanos > 0 ) out.printf( "%.3f ms cpu per sample%n", cpuNanos / 1e6 / samples );
+        if ( started != 0 )
+        {
+            long elapsed = ( stopped == 0 ? System.nanoTime() : stopped ) - started;
+            out.printf( "%.3f%% of wall clock time spent sampling%n", 100.0 * ( dumpNanos + convertNanos ) / elapsed );
+        }
+    }
+
+    private ThreadDump convert( ThreadInfo[] infos )
+    {
+        List<ThreadData> dump = new ArrayList<ThreadData>( infos.length );
+        List<StackElement> stack = new ArrayList<StackElement>();
+        for ( ThreadInfo info : infos )
+        {
+            if ( info == null ) continue; // the thread has ended
+            stack.clear();
+            StackTraceElement[] trace = info.getStackTrace();
+            MonitorInfo[] monitors = info.getLockedMonitors();
+            for ( int depth = 0; depth < trace.length; depth++ )
+            {
+                stack.add( method( trace[depth] ) );
+                if ( depth == 0 && info.getLockInfo() != null ) stack.add( waiting( info, trace[0] ) );
+                for ( MonitorInfo monitor : monitors )
+                {
+                    if ( monitor.getLockedStackDepth() == depth )
+                    {
+                        stack.add( new LockMonitor( "locked " + describe( monitor ) ) );
+                    }
+                }
+            }
+            for ( LockInfo synchronizer : info.getLockedSynchronizers() )
+            {
+                stack.add( new LockMonitor( StackElement.OWNABLE + describe( synchronizer ) ) );
+            }
+            dump.add( new ThreadData( info( info ), info.getThreadState(), stateComment( info, trace ),
+                    stacks.insert( stack.toArray( new StackElement[stack.size()] ) ) ) );
+        }
+        return new ThreadDump( new String[] { dateFormat.format( new Date() ), header }, dump );
+    }
+
+    private MethodEntry method( StackTraceElement element )
+    {
+        MethodEntry method = methods.get( element );
+        if ( method == null ) methods.put( element, method = frames.intern( element.toString() ) );
+        return method;
+    }
+
+    private static WaitMonitor waiting( ThreadInfo info, StackTraceElement top )
+    {
+        String lock = describe( info.getLockInfo() );
+        if ( info.getThreadState() == Thread.State.BLOCKED ) return new WaitMonitor( "waiting to lock " + lock );
+        if ( isPark( top ) ) return new WaitMonitor( "parking to wait for  " + lock );
+        return new WaitMonitor( "waiting on " + lock );
+    }
+
+    private static boolean isPark( StackTraceElement top )
+    {
+        return "park".equals( top.getMethodName() ) && top.getClassName().endsWith( "Unsafe" );
+    }
+
+    private static String describe( LockInfo lock )
+    {
+        return "<0x" + Integer.toHexString( lock.getIdentityHashCode() ) + "> (a " + lock.getClassName() + ")";
+    }
+
+    private static String info( ThreadInfo info )
+    {
+        return "\"" + info.getThreadName() + "\" #" + info.getThreadId()
+               + ( info.getLockOwnerName() == null ? "" : " owned by \"" + info.getLockOwnerName() + "\"" );
+    }
+
+    private static String stateComment( ThreadInfo info, StackTraceElement[] trace )
+    {
+        switch ( info.getThreadState() )
+        {
+        case BLOCKED:
+            return "(on object monitor)";
+        case WAITING:
+        case TIMED_WAITING:
+            if ( trace.length > 0 && isPark( trace[0] ) ) return "(parking)";
+            if ( info.getLockInfo() != null ) return "(on object monitor)";
+            if ( trace.length > 0 && "sleep".equals( trace[0].getMethodName() ) ) return "(sleeping)";
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        int count = 100, capacity = 10;
+        long interval = 100;
+        for ( int i = 0; i + 1 < args.length; i += 2 )
+        {
+            if ( "--count".equals( args[i] ) ) count = Integer.parseInt( args[i + 1] );
+            else if ( "--interval".equals( args[i] ) ) interval = Long.parseLong( args[i + 1] );
+            else if ( "--capacity".equals( args[i] ) ) capacity = Integer.parseInt( args[i + 1] );
+            else throw new IllegalArgumentException( Arrays.toString( args ) );
+        }
+        ThreadSampler sampler = new ThreadSampler( capacity );
+        sampler.start( interval, TimeUnit.MILLISECONDS );
+        try
+        {
+            Thread.sleep( count * interval );
+        }
+        finally
+        {
+            sampler.close();
+        }
+        List<ThreadDump> dumps = sampler.dumps();
+        if ( !dumps.isEmpty() ) dumps.get( dumps.size() - 1 ).print( System.out );
+        sampler.printStatistics( System.out );
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import org.neo4j.analysis.threaddump.StackElement.MethodEntry;
+
+/**
+ * Finds the most contended monitors, by the number of threads blocked on
+ * them summed over all dumps, and the hottest frames, by the number of
+ * <code>RUNNABLE</code> threads that execute them, in fixed memory however
+ * many distinct monitors and frames the dumps have. Counts are estimates
+ * within a configurable error, see {@link HeavyHitters}.
+ */
+public class TopContention
+{
+    private final HeavyHitters<String> monitors, frames;
+    private long dumps;
+
+    /**
+     * @param error the most a count can be too high, as a fraction of the
+     *            total count.
+     */
+    public TopContention( double error )
+    {
+        int capacity = HeavyHitters.capacity( error );
+        this.monitors = new HeavyHitters<String>( capacity );
+        this.frames = new HeavyHitters<String>( capacity );
+    }
+
+    public void add( ThreadDump dump )
+    {
+        dumps++;
+        LockGraph locks = dump.locks();
+        for ( int m = 0; m < locks.monitorCount(); m++ )
+        {
+            int blocked = 0;
+            for ( int e = locks.waiterStart( m ); e < locks.waiterEnd( m ); e++ )
+            {
+                if ( locks.waiterBlocking( e ) ) blocked++;
+            }
+            if ( blocked != 0 ) monitors.add( locks.monitor( m ), blocked );
+        }
+        for ( ThreadData thread : dump )
+        {
+            if ( thread.state() != Thread.State.RUNNABLE ) continue;
+            for ( StackTrie.Node node = thread.stack(); node.parent != null; node = node.parent )
+            {
+                if ( node.element instanceof MethodEntry )
+                {
+                    frames.add( ( (MethodEntry) node.element ).line(), 1 );
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Adds the counts of <code>other</code>, which must have the same error, to this. */
+    public void merge( TopContention other )
+    {
+        monitors.merge( other.monitors );
+        frames.merge( other.frames );
+        dumps += other.dumps;
+    }
+
+    /** Prints the <code>k</code> most contended monitors and hottest frames. */
+    public void print( PrintStream out, int k )
+    {
+        out.println( "Most contended monitors, blocked threads in " + dumps + " dumps:" );
+        print( out, monitors, k );
+        out.println( "Hottest frames, of " + frames.total() + " RUNNABLE threads:" );
+        print( out, frames, k );
+    }
+
+    private static void print( PrintStream out, HeavyHitters<String> counts, int k )
+    {
+        for ( HeavyHitters.Counter<String> counter : counts.top( k ) )
+        {
+            out.print( "  " + counter.count );
+            if ( counter.error != 0 ) out.print( " (at least " + counter.guaranteed() + ")" );
+            out.println( " " + counter.key );
+        }
+    }
+
+    /**
+     * Aggregates all dumps of <code>dumps</code>, in tasks of a batch of dumps
+     * each on <code>pool</code>, and merges the partial results.
+     */
+    public static TopContention aggregate( Iterable<ThreadDump> dumps, final double error, ForkJoinPool pool )
+    {
+        return new ParallelAggregation<TopContention>()
+        {
+            @Override
+            TopContention create()
+            {
+                return new TopContention( error );
+            }
+
+            @Override
+            void add( TopContention result, ThreadDump dump )
+            {
+                result.add( dump );
+            }
+
+            @Override
+            void merge( TopContention result, TopContention partial )
+            {
+                result.merge( partial );
+            }
+        }.aggregate( dumps, pool );
+    }
+
+    public static void main( String... args ) throws Exception
+    {
+        int top = 50;
+        double error = 0.001;
+        int i = 0;
+        for ( ; i < args.length && args[i].startsWith( "--" ); i++ )
+        {
+            if ( "--top".equals( args[i] ) && i + 1 < args.length ) top = Integer.parseInt( args[++i] );
+            else if ( "--error".equals( args[i] ) && i + 1 < args.length ) error = Double.parseDouble( args[++i] );
+            else break;
+        }
+        if ( i == args.length )
+        {
+            System.err.println( "usage: TopContention [--top N] [--error fraction] <dump file>..." );
+            System.exit( 1 );
+        }
+        TopContention result = new TopContention( error );
+        for ( ; i < args.length; i++ )
+        {
+            final ParallelThreadDumpFile dumps = new ParallelThreadDumpFile( new File( args[i] ) );
+            try
+            {
+                result.merge( aggregate( new Iterable<ThreadDump>()
+                {
+                    public Iterator<ThreadDump> iterator()
+                    {
+                        return dumps;
+                    }
+                }, error, ForkJoinPool.commonPool() ) );
+            }
+            finally
+            {
+                dumps.close();
+            }
+        }
+        PrintStream out = new PrintStream( new BufferedOutputStream( System.out, 1 << 16 ) );
+        result.print( out, top );
+        out.flush();
+    }
+}
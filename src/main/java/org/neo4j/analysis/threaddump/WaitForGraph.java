@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.analysis.threaddump;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The threads of a dump that are blocked on a monitor, with an edge to each
+ * thread that holds it. Deadlocks are found as the strongly connected
+ * components of this graph (Tarjan), and the longest chain of threads
+ * blocked behind each thread is computed over the components in topological
+ * order, in time linear in the number of threads and edges. The number of
+ * distinct threads blocked behind a root blocker is counted by a search of
+ * the threads that wait for it, so that a thread that reaches it along more
+ * than one path is only counted once.
+ *
+ * Threads in {@link Object#wait()} have released the monitor they wait on, so
+ * they neither block on it nor hold it.
+ */
+final class WaitForGraph
+{
+    private final LockGraph locks;
+    private final int[] start, targets;
+    /** The reverse edges, the threads that wait for each thread. */
+    private final int[] waiterStart, waiters;
+    private final int[] fanIn;
+    private final int[] component;
+    private int components;
+    private int[] componentSize, depth;
+    /** The threads of each component, as ranges of members. */
+    private int[] first, members;
+
+    WaitForGraph( LockGraph locks )
+    {
+        this.locks = locks;
+        int threads = locks.threadCount();
+        int[] sources = new int[16], holders = new int[16];
+        int edges = 0;
+        int[] waitingOn = new int[threads];
+        for ( int m = 0; m < locks.monitorCount(); m++ )
+        {
+            for ( int e = locks.waiterStart( m ); e < locks.waiterEnd( m ); e++ )
+            {
+                if ( !locks.waiterBlocking( e ) ) waitingOn[locks.waiterThread( e )] = m + 1;
+            }
+            for ( int w = locks.waiterStart( m ); w < locks.waiterEnd( m ); w++ )
+            {
+                if ( !locks.waiterBlocking( w ) ) continue;
+                int waiter = locks.waiterThread( w );
+                for ( int o = locks.ownerStart( m ); o < locks.ownerEnd( m ); o++ )
+                {
+                    int holder = locks.ownerThread( o );
+                    if ( holder == waiter || waitingOn[holder] == m + 1 ) continue;
+                    if ( edges == sources.length )
+                    {
+                        sources = Arrays.copyOf( sources, edges * 2 );
+                        holders = Arrays.copyOf( holders, edges * 2 );
+                    }
+                    sources[edges] = waiter;
+                    holders[edges++] = holder;
+                }
+            }
+        }
+        // compressed rows per waiting thread, without duplicate edges
+        int[] start = new int[threads + 1];
+        for ( int e = 0; e < edges; e++ )
+        {
+            start[sources[e] + 1]++;
+        }
+        for ( int t = 0; t < threads; t++ )
+        {
+            start[t + 1] += start[t];
+        }
+        int[] next = Arrays.copyOf( start, threads ), targets = new int[edges];
+        for ( int e = 0; e < edges; e++ )
+        {
+            targets[next[sources[e]]++] = holders[e];
+        }
+        int[] seen = new int[threads];
+        this.fanIn = new int[threads];
+        this.start = new int[threads + 1];
+        int size = 0;
+        for ( int t = 0; t < threads; t++ )
+        {
+            this.start[t] = size;
+            for ( int e = start[t]; e < start[t + 1]; e++ )
+            {
+                int holder = targets[e];
+                if ( seen[holder] == t + 1 ) continue;
+                seen[holder] = t + 1;
+                targets[size++] = holder;
+                fanIn[holder]++;
+            }
+        }
+        this.start[threads] = size;
+        this.targets = targets;
+        this.waiterStart = new int[threads + 1];
+        for ( int e = 0; e < size; e++ )
+        {
+            waiterStart[targets[e] + 1]++;
+        }
+        for ( int t = 0; t < threads; t++ )
+        {
+            waiterStart[t + 1] += waiterStart[t];
+        }
+        this.waiters = new int[size];
+        next = Arrays.copyOf( waiterStart, threads );
+        for ( int t = 0; t < threads; t++ )
+        {
+            for ( int e = this.start[t]; e < this.start[t + 1]; e++ )
+            {
+                waiters[next[targets[e]]++] = t;
+            }
+        }
+        this.component = new int[threads];
+        findComponents();
+        propagate();
+    }
+
+    /**
+     * Tarjan's algorithm, iteratively. Components are numbered in the order
+     * they are completed, which puts every component after the components of
+     * the threads it waits for.
+     */
+    private void findComponents()
+    {
+        int threads = component.length;
+        int[] index = new int[threads], low = new int[threads];
+        Arrays.fill( index, -1 );
+        boolean[] onStack = new boolean[threads];
+        int[] stack = new int[threads], call = new int[threads], next = new int[threads];
+        int[] sizes = new int[threads];
+        int counter = 0, sp = 0;
+        for ( int root = 0; root < threads; root++ )
+        {
+            if ( index[root] != -1 ) continue;
+            int depth = 0;
+            call[0] = root;
+            next[0] = start[root];
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            while ( depth >= 0 )
+            {
+                int v = call[depth];
+                if ( next[depth] < start[v + 1] )
+                {
+                    int w = targets[next[depth]++];
+                    if ( index[w] == -1 )
+                    {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        call[++depth] = w;
+                        next[depth] = start[w];
+                    }
+                    else if ( onStack[w] )
+                    {
+                        low[v] = Math.min( low[v], index[w] );
+                    }
+                }
+                else
+                {
+                    if ( low[v] == index[v] )
+                    {
+                        int w;
+                        do
+                        {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                            component[w] = components;
+                            sizes[components]++;
+                        }
+                        while ( w != v );
+                        components++;
+                    }
+                    if ( --depth >= 0 )
+                    {
+                        int u = call[depth];
+                        low[u] = Math.min( low[u], low[v] );
+                    }
+                }
+            }
+        }
+        this.componentSize = Arrays.copyOf( sizes, components );
+    }
+
+    /**
+     * Computes, for each component, how long the longest chain of waiting
+     * threads is, by visiting the waiting components before the components
+     * they wait for.
+     */
+    private void propagate()
+    {
+        int threads = component.length;
+        int[] first = new int[components + 1], members = new int[threads];
+        for ( int t = 0; t < threads; t++ )
+        {
+            first[component[t] + 1]++;
+        }
+        for ( int c = 0; c < components; c++ )
+        {
+            first[c + 1] += first[c];
+        }
+        int[] next = Arrays.copyOf( first, components );
+        for ( int t = 0; t < threads; t++ )
+        {
+            members[next[component[t]]++] = t;
+        }
+        this.first = first;
+        this.members = members;
+        depth = new int[components];
+        int[] seen = new int[components];
+        for ( int c = components - 1; c >= 0; c-- )
+        {
+            for ( int i = first[c]; i < first[c + 1]; i++ )
+            {
+                int t = members[i];
+                for ( int e = start[t]; e < start[t + 1]; e++ )
+                {
+                    int target = component[targets[e]];
+                    if ( target == c || seen[target] == c + 1 ) continue;
+                    seen[target] = c + 1;
+                    depth[target] = Math.max( depth[target], depth[c] + 1 );
+                }
+            }
+        }
+    }
+
+    /** @return the groups of threads that wait for each other in a cycle. */
+    List<List<ThreadData>> deadlocks()
+    {
+        List<List<ThreadData>> deadlocks = new ArrayList<List<ThreadData>>();
+        List<ThreadData>[] byComponent = membersOfCycles();
+        for ( List<ThreadData> cycle : byComponent )
+        {
+            if ( cycle != null ) deadlocks.add( cycle );
+        }
+        return deadlocks;
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private List<ThreadData>[] membersOfCycles()
+    {
+        List<ThreadData>[] cycles = new List[components];
+        for ( int t = 0; t < component.length; t++ )
+        {
+            int c = component[t];
+            if ( componentSize[c] > 1 )
+            {
+                if ( cycles[c] == null ) cycles[c] = new ArrayList<ThreadData>();
+                cycles[c].add( locks.thread( t ) );
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * @return the threads that other threads are blocked behind, and that are
+     *         not themselves blocked by anything but a deadlock, the ones
+     *         blocking the most threads first.
+     */
+    List<Blocker> rootBlockers()
+    {
+        List<Blocker> roots = new ArrayList<Blocker>();
+        int[] blocked = new int[components], mark = new int[component.length], queue = new int[component.length];
+        Arrays.fill( blocked, -1 );
+        for ( int t = 0; t < component.length; t++ )
+        {
+            int c = component[t];
+            boolean deadlocked = componentSize[c] > 1;
+            if ( fanIn[t] > 0 && ( deadlocked || start[t] == start[t + 1] ) )
+            {
+                if ( blocked[c] == -1 ) blocked[c] = blocked( c, mark, queue );
+                roots.add( new Blocker( locks.thread( t ), fanIn[t], blocked[c], depth[c], deadlocked ) );
+            }
+        }
+        Collections.sort( roots );
+        return roots;
+    }
+
+    /**
+     * @return the number of distinct threads, outside of the component, that
+     *         are transitively blocked behind it, found by a search of the
+     *         threads waiting for its threads. <code>mark</code> records the
+     *         threads visited by the search of each component.
+     */
+    private int blocked( int c, int[] mark, int[] queue )
+    {
+        int head = 0, tail = 0;
+        for ( int i = first[c]; i < first[c + 1]; i++ )
+        {
+            mark[members[i]] = c + 1;
+            queue[tail++] = members[i];
+        }
+        int inside = tail;
+        while ( head < tail )
+        {
+            int t = queue[head++];
+            for ( int e = waiterStart[t]; e < waiterStart[t + 1]; e++ )
+            {
+                int waiter = waiters[e];
+                if ( mark[waiter] == c + 1 ) continue;
+                mark[waiter] = c + 1;
+                queue[tail++] = waiter;
+            }
+        }
+        return tail - inside;
+    }
+
+    void print( PrintStream out )
+    {
+        for ( List<ThreadData> deadlock : deadlocks() )
+        {
+            out.print( "Deadlock between:" );
+            for ( ThreadData thread : deadlock )
+            {
+                out.print( " " + thread.id );
+            }
+            out.println();
+        }
+        List<Blocker> roots = rootBlockers();
+        if ( !roots.isEmpty() )
+        {
+            out.println( "Root blockers:" );
+            for ( Blocker blocker : roots )
+            {
+                out.println( "  " + blocker );
+            }
+        }
+    }
+
+    static final class Blocker implements Comparable<Blocker>
+    {
+        final ThreadData thread;
+        /** The number of threads directly waiting for this thread. */
+        final int fanIn;
+        /** The number of distinct threads transitively waiting for this thread. */
+        final int blocked;
+        /** The length of the longest chain of threads waiting for this thread. */
+        final int depth;
+        final boolean deadlocked;
+
+        Blocker( ThreadData thread, int fanIn, int blocked, int depth, boolean deadlocked )
+        {
+            this.thread = thread;
+            this.fanIn = fanIn;
+            this.blocked = blocked;
+            this.depth = depth;
+            this.deadlocked = deadlocked;
+        }
+
+        public int compareTo( Blocker that )
+        {
+            if ( this.blocked != that.blocked ) return that.blocked - this.blocked;
+            if ( this.depth != that.depth ) return that.depth - this.depth;
+            return that.fanIn - this.fanIn;
+        }
+
+        @Override
+        public String toString()
+        {
+            return thread.id + ": blocks " + blocked + " threads (" + fanIn + " directly), chain depth " + depth
+                   + ( deadlocked ? ", deadlocked" : "" );
+        }
+    }
+}